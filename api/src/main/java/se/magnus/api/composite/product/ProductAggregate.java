@@ -4,6 +4,8 @@ import java.util.List;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import se.magnus.api.core.recommendation.RecommendationStats;
+import se.magnus.api.core.review.ReviewStats;
 
 @Data
 @AllArgsConstructor
@@ -15,4 +17,32 @@ public class ProductAggregate {
   private List<RecommendationSummary> recommendations;
   private List<ReviewSummary> reviews;
   private ServiceAddresses serviceAddresses;
+
+  // The afterId of the next page of recommendations and reviews, null if all are included
+  private Integer recommendationsCursor;
+  private Integer reviewsCursor;
+
+  // Only set by the summary-only request, which leaves out the lists
+  private RecommendationStats recommendationStats;
+  private ReviewStats reviewStats;
+
+  public ProductAggregate(
+      int productId,
+      String name,
+      int weight,
+      List<RecommendationSummary> recommendations,
+      List<ReviewSummary> reviews,
+      ServiceAddresses serviceAddresses) {
+    this(
+        productId,
+        name,
+        weight,
+        recommendations,
+        reviews,
+        serviceAddresses,
+        null,
+        null,
+        null,
+        null);
+  }
 }
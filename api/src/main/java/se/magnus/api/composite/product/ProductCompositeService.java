@@ -1,12 +1,26 @@
 package se.magnus.api.composite.product;
 
+import java.util.List;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 public interface ProductCompositeService {
 
+  /**
+   * Sample usage: "curl -X POST -H 'Idempotency-Key: 7c4a...' $HOST:$PORT/product-composite ...".
+   *
+   * <p>If the product, its recommendations or its reviews can't be created, the parts that were
+   * created are deleted again. A retry with the same Idempotency-Key as a request that succeeded
+   * completes without creating anything.
+   *
+   * @param body the composite product
+   * @param idempotencyKey optional key that identifies the request across retries
+   */
   @PostMapping(value = "/product-composite", consumes = "application/json")
-  Mono<Void> createProduct(@RequestBody ProductAggregate body);
+  Mono<Void> createProduct(
+      @RequestBody ProductAggregate body,
+      @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey);
 
   /**
    * Sample usage: "curl $HOST:$PORT/product-composite/1".
@@ -17,6 +31,61 @@ public interface ProductCompositeService {
   @GetMapping(value = "/product-composite/{productId}", produces = "application/json")
   Mono<ProductAggregate> getProduct(@PathVariable int productId);
 
+  /**
+   * Sample usage: "curl $HOST:$PORT/product-composite/1?summaryOnly=true".
+   *
+   * <p>Returns the recommendation and review statistics of the product instead of the lists, which
+   * are not fetched at all.
+   *
+   * @param productId Id of the product
+   * @return the composite product info without recommendations and reviews
+   */
+  @GetMapping(
+      value = "/product-composite/{productId}",
+      params = "summaryOnly=true",
+      produces = "application/json")
+  Mono<ProductAggregate> getProductSummary(@PathVariable int productId);
+
+  /**
+   * Sample usage: "curl $HOST:$PORT/product-composite/1?fields=reviews".
+   *
+   * <p>The product itself is always included. Recommendations and reviews are only fetched if
+   * listed in fields, and are left out of the response otherwise.
+   *
+   * @param productId Id of the product
+   * @param fields the parts to include: "product", "recommendations" and/or "reviews"
+   * @return the composite product info with the selected parts, if found, else null
+   */
+  @GetMapping(
+      value = "/product-composite/{productId}",
+      params = {"fields", "!summaryOnly"},
+      produces = "application/json")
+  Mono<ProductAggregate> getProductFields(
+      @PathVariable int productId, @RequestParam(value = "fields") List<String> fields);
+
+  /**
+   * Sample usage: "curl $HOST:$PORT/product-composite?ids=1,2,3".
+   *
+   * <p>Use "Accept: application/x-ndjson" to get the aggregates streamed one by one.
+   *
+   * @param productIds Ids of the products
+   * @return the composite product info of the products found
+   */
+  @GetMapping(
+      value = "/product-composite",
+      produces = {"application/json", "application/x-ndjson"})
+  Flux<ProductAggregate> getProducts(
+      @RequestParam(value = "ids", required = true) List<Integer> productIds);
+
+  /**
+   * Sample usage: "curl -X DELETE $HOST:$PORT/product-composite/1".
+   *
+   * @param productId Id of the product
+   * @param idempotencyKey optional key that identifies the request across retries, a retry of a
+   *     request that succeeded completes without calling the core services
+   */
   @DeleteMapping(value = "/product-composite/{productId}")
-  Mono<Void> deleteProduct(@PathVariable int productId);
+  Mono<Void> deleteProduct(
+      @PathVariable int productId,
+      @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey);
 }
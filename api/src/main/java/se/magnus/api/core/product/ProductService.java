@@ -1,6 +1,8 @@
 package se.magnus.api.core.product;
 
+import java.util.List;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 public interface ProductService {
@@ -14,7 +16,10 @@ public interface ProductService {
    * @param body A JSON representation of the new product
    * @return A JSON representation of the newly created product
    */
-  @PostMapping(value = "/product", consumes = "application/json", produces = "application/json")
+  @PostMapping(
+      value = "/product",
+      consumes = {"application/json", "application/x-jackson-smile"},
+      produces = {"application/json", "application/x-jackson-smile"})
   Mono<Product> createProduct(@RequestBody Product body);
 
   /**
@@ -23,9 +28,28 @@ public interface ProductService {
    * @param productId Id of the product
    * @return the product, if found, else null
    */
-  @GetMapping(value = "/product/{productId}", produces = "application/json")
+  @GetMapping(
+      value = "/product/{productId}",
+      produces = {"application/json", "application/x-jackson-smile"})
   Mono<Product> getProduct(@PathVariable int productId);
 
+  /**
+   * Sample usage: "curl $HOST:$PORT/product/batch?productIds=1,2,3".
+   *
+   * @param productIds Ids of the products
+   * @return the products found, products that don't exist are left out
+   */
+  @GetMapping(
+      value = "/product/batch",
+      produces = {
+        "application/json",
+        "application/x-ndjson",
+        "application/x-jackson-smile",
+        "application/stream+x-jackson-smile"
+      })
+  Flux<Product> getProducts(
+      @RequestParam(value = "productIds", required = true) List<Integer> productIds);
+
   /**
    * Sample usage: "curl -X DELETE $HOST:$PORT/product/1".
    *
@@ -1,5 +1,6 @@
 package se.magnus.api.core.recommendation;
 
+import java.util.List;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -17,20 +18,109 @@ public interface RecommendationService {
    */
   @PostMapping(
       value = "/recommendation",
-      consumes = "application/json",
-      produces = "application/json")
+      consumes = {"application/json", "application/x-jackson-smile"},
+      produces = {"application/json", "application/x-jackson-smile"})
   Mono<Recommendation> createRecommendation(@RequestBody Recommendation body);
 
+  /**
+   * Sample usage, see below.
+   *
+   * <p>curl -X POST $HOST:$PORT/recommendation/batch \ -H "Content-Type: application/json" --data \
+   * '[{"productId":123,"recommendationId":456,"author":"me","rate":5,"content":"yada"}]'
+   *
+   * <p>Recommendations that already exist are reported in one error, all the others are created.
+   *
+   * @param body A JSON array of the new recommendations
+   * @return A JSON array of the newly created recommendations
+   */
+  @PostMapping(
+      value = "/recommendation/batch",
+      consumes = {"application/json", "application/x-jackson-smile"},
+      produces = {"application/json", "application/x-jackson-smile"})
+  Flux<Recommendation> createRecommendations(@RequestBody List<Recommendation> body);
+
   /**
    * Sample usage: "curl $HOST:$PORT/recommendation?productId=1".
    *
+   * <p>Use "Accept: application/x-ndjson" to get the recommendations streamed one by one, as they
+   * are read from the database.
+   *
+   * <p>"application/stream+x-jackson-smile" streams them in Smile, a binary JSON format, which is
+   * what the composite service asks for.
+   *
    * @param productId Id of the product
    * @return the recommendations of the product
    */
-  @GetMapping(value = "/recommendation", produces = "application/json")
+  @GetMapping(
+      value = "/recommendation",
+      produces = {
+        "application/json",
+        "application/x-ndjson",
+        "application/x-jackson-smile",
+        "application/stream+x-jackson-smile"
+      })
   Flux<Recommendation> getRecommendations(
       @RequestParam(value = "productId", required = true) int productId);
 
+  /**
+   * Sample usage: "curl $HOST:$PORT/recommendation?productId=1&afterId=100&limit=50".
+   *
+   * <p>Returns the recommendations ordered by recommendationId. To get the next page, use the
+   * recommendationId of the last recommendation as afterId. A page with fewer than limit
+   * recommendations is the last one.
+   *
+   * @param productId Id of the product
+   * @param afterId Only recommendations with a higher recommendationId are returned, omit to start
+   *     from the first
+   * @param limit Max number of recommendations to return
+   * @return one page of the recommendations of the product
+   */
+  @GetMapping(
+      value = "/recommendation",
+      params = "limit",
+      produces = {
+        "application/json",
+        "application/x-ndjson",
+        "application/x-jackson-smile",
+        "application/stream+x-jackson-smile"
+      })
+  Flux<Recommendation> getRecommendationsPage(
+      @RequestParam(value = "productId", required = true) int productId,
+      @RequestParam(value = "afterId", required = false) Integer afterId,
+      @RequestParam(value = "limit", required = true) int limit);
+
+  /**
+   * Sample usage: "curl $HOST:$PORT/recommendation/stats?productId=1".
+   *
+   * <p>The statistics are kept up to date when recommendations are created or deleted, so no
+   * recommendations are read.
+   *
+   * @param productId Id of the product
+   * @return the recommendation statistics of the product, with a zero count if it has none
+   */
+  @GetMapping(
+      value = "/recommendation/stats",
+      produces = {"application/json", "application/x-jackson-smile"})
+  Mono<RecommendationStats> getRecommendationStats(
+      @RequestParam(value = "productId", required = true) int productId);
+
+  /**
+   * Sample usage: "curl $HOST:$PORT/recommendation/batch?productIds=1,2,3".
+   *
+   * @param productIds Ids of the products
+   * @return the recommendations of the products
+   */
+  @GetMapping(
+      value = "/recommendation/batch",
+      produces = {
+        "application/json",
+        "application/x-ndjson",
+        "application/x-jackson-smile",
+        "application/stream+x-jackson-smile"
+      })
+  Flux<Recommendation> getRecommendationsByProductIds(
+      @RequestParam(value = "productIds", required = true) List<Integer> productIds);
+
   /**
    * Sample usage: "curl -X DELETE $HOST:$PORT/recommendation?productId=1".
    *
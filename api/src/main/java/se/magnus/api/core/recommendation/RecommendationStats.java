@@ -0,0 +1,24 @@
+package se.magnus.api.core.recommendation;
+
+import java.time.Instant;
+import java.util.Map;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class RecommendationStats {
+  private int productId;
+  private long count;
+  private long rateSum;
+  // Number of recommendations per rate
+  private Map<Integer, Long> rateHistogram;
+  private Instant lastUpdated;
+  private String serviceAddress;
+
+  public double getAverageRate() {
+    return (count == 0) ? 0 : (double) rateSum / count;
+  }
+}
@@ -1,5 +1,6 @@
 package se.magnus.api.core.review;
 
+import java.util.List;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -16,18 +17,106 @@ public interface ReviewService {
    * @param body A JSON representation of the new review
    * @return A JSON representation of the newly created review
    */
-  @PostMapping(value = "/review", consumes = "application/json", produces = "application/json")
+  @PostMapping(
+      value = "/review",
+      consumes = {"application/json", "application/x-jackson-smile"},
+      produces = {"application/json", "application/x-jackson-smile"})
   Mono<Review> createReview(@RequestBody Review body);
 
+  /**
+   * Sample usage, see below.
+   *
+   * <p>curl -X POST $HOST:$PORT/review/batch \ -H "Content-Type: application/json" --data \
+   * '[{"productId":123,"reviewId":456,"author":"me","subject":"yada","content":"yada"}]'
+   *
+   * <p>Reviews that already exist are reported in one error, all the others are created.
+   *
+   * @param body A JSON array of the new reviews
+   * @return A JSON array of the newly created reviews
+   */
+  @PostMapping(
+      value = "/review/batch",
+      consumes = {"application/json", "application/x-jackson-smile"},
+      produces = {"application/json", "application/x-jackson-smile"})
+  Flux<Review> createReviews(@RequestBody List<Review> body);
+
   /**
    * Sample usage: "curl $HOST:$PORT/review?productId=1".
    *
+   * <p>Use "Accept: application/x-ndjson" to get the reviews streamed one by one, as they are read
+   * from the database, or "Accept: application/stream+x-jackson-smile" to get them streamed in
+   * Smile. All review APIs also accept and produce "application/x-jackson-smile".
+   *
    * @param productId Id of the product
    * @return the reviews of the product
    */
-  @GetMapping(value = "/review", produces = "application/json")
+  @GetMapping(
+      value = "/review",
+      produces = {
+        "application/json",
+        "application/x-ndjson",
+        "application/x-jackson-smile",
+        "application/stream+x-jackson-smile"
+      })
   Flux<Review> getReviews(@RequestParam(value = "productId", required = true) int productId);
 
+  /**
+   * Sample usage: "curl $HOST:$PORT/review?productId=1&afterId=100&limit=50".
+   *
+   * <p>Returns the reviews ordered by reviewId. To get the next page, use the reviewId of the last
+   * review as afterId. A page with fewer than limit reviews is the last one.
+   *
+   * @param productId Id of the product
+   * @param afterId Only reviews with a higher reviewId are returned, omit to start from the first
+   * @param limit Max number of reviews to return
+   * @return one page of the reviews of the product
+   */
+  @GetMapping(
+      value = "/review",
+      params = "limit",
+      produces = {
+        "application/json",
+        "application/x-ndjson",
+        "application/x-jackson-smile",
+        "application/stream+x-jackson-smile"
+      })
+  Flux<Review> getReviewsPage(
+      @RequestParam(value = "productId", required = true) int productId,
+      @RequestParam(value = "afterId", required = false) Integer afterId,
+      @RequestParam(value = "limit", required = true) int limit);
+
+  /**
+   * Sample usage: "curl $HOST:$PORT/review/stats?productId=1".
+   *
+   * <p>The statistics are kept up to date when reviews are created or deleted, so no reviews are
+   * read.
+   *
+   * @param productId Id of the product
+   * @return the review statistics of the product, with a zero count if it has no reviews
+   */
+  @GetMapping(
+      value = "/review/stats",
+      produces = {"application/json", "application/x-jackson-smile"})
+  Mono<ReviewStats> getReviewStats(
+      @RequestParam(value = "productId", required = true) int productId);
+
+  /**
+   * Sample usage: "curl $HOST:$PORT/review/batch?productIds=1,2,3".
+   *
+   * @param productIds Ids of the products
+   * @return the reviews of the products
+   */
+  @GetMapping(
+      value = "/review/batch",
+      produces = {
+        "application/json",
+        "application/x-ndjson",
+        "application/x-jackson-smile",
+        "application/stream+x-jackson-smile"
+      })
+  Flux<Review> getReviewsByProductIds(
+      @RequestParam(value = "productIds", required = true) List<Integer> productIds);
+
   /**
    * Sample usage: "curl -X DELETE $HOST:$PORT/review?productId=1".
    *
@@ -0,0 +1,16 @@
+package se.magnus.api.core.review;
+
+import java.time.Instant;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ReviewStats {
+  private int productId;
+  private long count;
+  private Instant lastUpdated;
+  private String serviceAddress;
+}
@@ -0,0 +1,42 @@
+package se.magnus.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import se.magnus.api.core.product.Product;
+import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.api.core.review.Review;
+
+/** Test data of realistic size, shared by the benchmarks. */
+public final class BenchmarkData {
+
+  public static final int PRODUCT_ID = 1;
+
+  private static final String CONTENT =
+      "Works as described, arrived on time and the build quality is better than expected. "
+          + "Would buy again, although the manual could have been a bit more detailed.";
+
+  private BenchmarkData() {}
+
+  public static Product product() {
+    return new Product(PRODUCT_ID, "Product name", 123, "product-service:8080");
+  }
+
+  public static List<Recommendation> recommendations(int size) {
+    List<Recommendation> recommendations = new ArrayList<>(size);
+    for (int i = 1; i <= size; i++) {
+      recommendations.add(
+          new Recommendation(
+              PRODUCT_ID, i, "Author " + i, i % 5, CONTENT, "recommendation-service:8080"));
+    }
+    return recommendations;
+  }
+
+  public static List<Review> reviews(int size) {
+    List<Review> reviews = new ArrayList<>(size);
+    for (int i = 1; i <= size; i++) {
+      reviews.add(
+          new Review(PRODUCT_ID, i, "Author " + i, "Subject " + i, CONTENT, "review-service:8080"));
+    }
+    return reviews;
+  }
+}
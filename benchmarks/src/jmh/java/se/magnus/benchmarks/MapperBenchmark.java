@@ -0,0 +1,96 @@
+package se.magnus.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import se.magnus.api.core.product.Product;
+import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.api.core.review.Review;
+import se.magnus.microservices.core.product.persistence.ProductEntity;
+import se.magnus.microservices.core.product.services.ProductMapper;
+import se.magnus.microservices.core.product.services.ProductMapperImpl;
+import se.magnus.microservices.core.recommendation.persistence.RecommendationEntity;
+import se.magnus.microservices.core.recommendation.services.RecommendationMapper;
+import se.magnus.microservices.core.recommendation.services.RecommendationMapperImpl;
+import se.magnus.microservices.core.review.persistence.ReviewEntity;
+import se.magnus.microservices.core.review.services.ReviewMapper;
+import se.magnus.microservices.core.review.services.ReviewMapperImpl;
+
+/** Entity to API conversions, and back, of the MapStruct mappers in the core services. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MapperBenchmark {
+
+  @Param({"0", "10", "100", "1000"})
+  int size;
+
+  private final ProductMapper productMapper = new ProductMapperImpl();
+  private final RecommendationMapper recommendationMapper = new RecommendationMapperImpl();
+  private final ReviewMapper reviewMapper = new ReviewMapperImpl();
+
+  private Product product;
+  private ProductEntity productEntity;
+  private List<Recommendation> recommendations;
+  private List<RecommendationEntity> recommendationEntities;
+  private List<Review> reviews;
+  private List<ReviewEntity> reviewEntities;
+
+  @Setup
+  public void setUp() {
+    product = BenchmarkData.product();
+    productEntity = productMapper.apiToEntity(product);
+    recommendations = BenchmarkData.recommendations(size);
+    recommendationEntities = recommendationMapper.apiListToEntityList(recommendations);
+    reviews = BenchmarkData.reviews(size);
+    reviewEntities = reviewMapper.apiListToEntityList(reviews);
+  }
+
+  @Benchmark
+  public Product productEntityToApi() {
+    return productMapper.entityToApi(productEntity);
+  }
+
+  @Benchmark
+  public ProductEntity productApiToEntity() {
+    return productMapper.apiToEntity(product);
+  }
+
+  @Benchmark
+  public List<Recommendation> recommendationEntitiesToApi() {
+    return recommendationMapper.entityListToApiList(recommendationEntities);
+  }
+
+  @Benchmark
+  public List<RecommendationEntity> recommendationApiToEntities() {
+    return recommendationMapper.apiListToEntityList(recommendations);
+  }
+
+  @Benchmark
+  public List<Review> reviewEntitiesToApi() {
+    return reviewMapper.entityListToApiList(reviewEntities);
+  }
+
+  @Benchmark
+  public List<ReviewEntity> reviewApiToEntities() {
+    return reviewMapper.apiListToEntityList(reviews);
+  }
+
+  // The per-item path used by the reactive repositories, which map one entity at a time
+  @Benchmark
+  public List<Review> reviewEntitiesToApiOneByOne() {
+    List<Review> result = new ArrayList<>(reviewEntities.size());
+    for (ReviewEntity entity : reviewEntities) {
+      result.add(reviewMapper.entityToApi(entity));
+    }
+    return result;
+  }
+}
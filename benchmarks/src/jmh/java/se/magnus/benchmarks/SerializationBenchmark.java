@@ -0,0 +1,72 @@
+package se.magnus.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import se.magnus.api.composite.product.ProductAggregate;
+import se.magnus.api.composite.product.RecommendationSummary;
+import se.magnus.api.composite.product.ReviewSummary;
+import se.magnus.api.composite.product.ServiceAddresses;
+
+/** Jackson serialization of the composite product, configured the way Spring Boot does it. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationBenchmark {
+
+  @Param({"0", "10", "100", "1000"})
+  int size;
+
+  private final ObjectMapper mapper = Jackson2ObjectMapperBuilder.json().build();
+
+  private ProductAggregate aggregate;
+  private byte[] json;
+
+  @Setup
+  public void setUp() throws IOException {
+    List<RecommendationSummary> recommendations =
+        BenchmarkData.recommendations(size).stream()
+            .map(
+                r ->
+                    new RecommendationSummary(
+                        r.getRecommendationId(), r.getAuthor(), r.getRate(), r.getContent()))
+            .collect(Collectors.toList());
+    List<ReviewSummary> reviews =
+        BenchmarkData.reviews(size).stream()
+            .map(
+                r ->
+                    new ReviewSummary(r.getReviewId(), r.getAuthor(), r.getSubject(), r.getContent()))
+            .collect(Collectors.toList());
+
+    aggregate =
+        new ProductAggregate(
+            BenchmarkData.PRODUCT_ID,
+            "Product name",
+            123,
+            recommendations,
+            reviews,
+            new ServiceAddresses("composite:8080", "product:8080", "review:8080", "rec:8080"));
+    json = mapper.writeValueAsBytes(aggregate);
+  }
+
+  @Benchmark
+  public byte[] serialize() throws IOException {
+    return mapper.writeValueAsBytes(aggregate);
+  }
+
+  @Benchmark
+  public ProductAggregate deserialize() throws IOException {
+    return mapper.readValue(json, ProductAggregate.class);
+  }
+}
@@ -0,0 +1,115 @@
+package se.magnus.benchmarks;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import se.magnus.api.core.product.Product;
+import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.api.core.review.Review;
+
+/**
+ * Encoding and decoding of the core service responses that make up one composite product, i.e. a
+ * product and its recommendations and reviews, in JSON and in Smile. The mappers are configured
+ * as the WebFlux codecs of the two formats are.
+ *
+ * <p>The bytes on the wire, before and after gzip compression, are reported as the secondary
+ * results wireBytes and gzippedBytes of encode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WireFormatBenchmark {
+
+  private static final TypeReference<List<Recommendation>> RECOMMENDATIONS =
+      new TypeReference<>() {};
+  private static final TypeReference<List<Review>> REVIEWS = new TypeReference<>() {};
+
+  @Param({"json", "smile"})
+  String format;
+
+  @Param({"10", "100", "1000"})
+  int size;
+
+  private ObjectMapper mapper;
+
+  private Product product;
+  private List<Recommendation> recommendations;
+  private List<Review> reviews;
+
+  private byte[] productBytes;
+  private byte[] recommendationBytes;
+  private byte[] reviewBytes;
+  private int gzippedBytes;
+
+  /** The size of the encoded responses, the same in every iteration. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class WireSize {
+    public long wireBytes;
+    public long gzippedBytes;
+
+    @Setup(Level.Iteration)
+    public void setUp(WireFormatBenchmark benchmark) {
+      wireBytes =
+          benchmark.productBytes.length
+              + benchmark.recommendationBytes.length
+              + benchmark.reviewBytes.length;
+      gzippedBytes = benchmark.gzippedBytes;
+    }
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    mapper =
+        "smile".equals(format)
+            ? Jackson2ObjectMapperBuilder.smile().build()
+            : Jackson2ObjectMapperBuilder.json().build();
+
+    product = BenchmarkData.product();
+    recommendations = BenchmarkData.recommendations(size);
+    reviews = BenchmarkData.reviews(size);
+
+    productBytes = mapper.writeValueAsBytes(product);
+    recommendationBytes = mapper.writeValueAsBytes(recommendations);
+    reviewBytes = mapper.writeValueAsBytes(reviews);
+
+    gzippedBytes = gzip(productBytes) + gzip(recommendationBytes) + gzip(reviewBytes);
+  }
+
+  @Benchmark
+  public int encode(WireSize wireSize) throws IOException {
+    return mapper.writeValueAsBytes(product).length
+        + mapper.writeValueAsBytes(recommendations).length
+        + mapper.writeValueAsBytes(reviews).length;
+  }
+
+  @Benchmark
+  public int decode() throws IOException {
+    return mapper.readValue(productBytes, Product.class).getProductId()
+        + mapper.readValue(recommendationBytes, RECOMMENDATIONS).size()
+        + mapper.readValue(reviewBytes, REVIEWS).size();
+  }
+
+  private static int gzip(byte[] bytes) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(bytes);
+    }
+    return out.size();
+  }
+}
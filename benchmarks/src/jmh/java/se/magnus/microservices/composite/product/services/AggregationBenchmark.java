@@ -0,0 +1,79 @@
+package se.magnus.microservices.composite.product.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import se.magnus.api.composite.product.ProductAggregate;
+import se.magnus.api.core.product.Product;
+import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.api.core.review.Review;
+import se.magnus.benchmarks.BenchmarkData;
+
+/**
+ * Building the composite product from the core service responses. Lives in the same package as
+ * ProductCompositeServiceImpl to reach its package-private createProductAggregate.
+ *
+ * <p>dtoJson and directJson compare the two app.aggregate-json modes from the core service
+ * responses to the JSON bytes. Run with "-PjmhIncludes=Aggregation -PjmhProfilers=gc" to compare
+ * the bytes allocated per operation, gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AggregationBenchmark {
+
+  @Param({"0", "10", "100", "1000"})
+  int size;
+
+  private Product product;
+  private List<Recommendation> recommendations;
+  private List<Review> reviews;
+
+  private final ObjectMapper mapper = Jackson2ObjectMapperBuilder.json().build();
+  private final ProductAggregateJsonEncoder encoder = new ProductAggregateJsonEncoder(mapper);
+
+  @Setup
+  public void setUp() {
+    product = BenchmarkData.product();
+    recommendations = BenchmarkData.recommendations(size);
+    reviews = BenchmarkData.reviews(size);
+  }
+
+  @Benchmark
+  public ProductAggregate createProductAggregate() {
+    return ProductCompositeServiceImpl.createProductAggregate(
+        product, recommendations, reviews, "product-composite-service:8080");
+  }
+
+  @Benchmark
+  public DataBuffer dtoJson() throws IOException {
+    return DefaultDataBufferFactory.sharedInstance.wrap(
+        mapper.writeValueAsBytes(createProductAggregate()));
+  }
+
+  @Benchmark
+  public DataBuffer directJson() {
+    return encoder.encodeValue(
+        new LazyProductAggregate(
+            product, recommendations, reviews, "product-composite-service:8080"),
+        DefaultDataBufferFactory.sharedInstance,
+        ResolvableType.forClass(ProductAggregate.class),
+        MediaType.APPLICATION_JSON,
+        Map.of());
+  }
+}
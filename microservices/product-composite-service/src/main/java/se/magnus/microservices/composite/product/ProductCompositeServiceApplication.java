@@ -1,17 +1,37 @@
 package se.magnus.microservices.composite.product;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.channel.ChannelOption;
 import io.swagger.v3.oas.models.OpenAPI;
 import io.swagger.v3.oas.models.info.Info;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.web.codec.CodecCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
+import org.springframework.core.env.Environment;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.web.client.RestTemplate;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.netty.resources.ConnectionProvider.ConnectionPoolSpec;
+import se.magnus.microservices.composite.product.services.ProductAggregateJsonEncoder;
 
 @SpringBootApplication
 @ComponentScan("se.magnus")
 public class ProductCompositeServiceApplication {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(ProductCompositeServiceApplication.class);
+
+  private static final List<String> DOWNSTREAM_SERVICES =
+      List.of("product-service", "recommendation-service", "review-service");
 
   @Value("${api.common.version}")
   String apiVersion;
@@ -19,6 +39,27 @@ public class ProductCompositeServiceApplication {
   @Value("${api.common.title}")
   String apiTitle;
 
+  @Value("${app.aggregate-json:direct}")
+  String aggregateJson;
+
+  @Value("${app.http-client.max-connections:100}")
+  int maxConnections;
+
+  @Value("${app.http-client.pending-acquire-max-count:1000}")
+  int pendingAcquireMaxCount;
+
+  @Value("${app.http-client.pending-acquire-timeout:5s}")
+  Duration pendingAcquireTimeout;
+
+  @Value("${app.http-client.max-idle-time:30s}")
+  Duration maxIdleTime;
+
+  @Value("${app.http-client.max-life-time:5m}")
+  Duration maxLifeTime;
+
+  @Value("${app.http-client.evict-in-background:30s}")
+  Duration evictInBackground;
+
   /**
    * Will exposed on $HOST:$PORT/swagger-ui.html
    *
@@ -29,11 +70,93 @@ public class ProductCompositeServiceApplication {
     return new OpenAPI().info(new Info().title(apiTitle).version(apiVersion));
   }
 
+  /**
+   * With app.aggregate-json=direct, composite products are written by ProductAggregateJsonEncoder
+   * instead of the default JSON encoder.
+   *
+   * @return the codec customizer that registers the encoder
+   */
+  @Bean
+  public CodecCustomizer productAggregateJsonCodec(ObjectMapper mapper) {
+    return configurer -> {
+      if ("direct".equals(aggregateJson)) {
+        configurer
+            .customCodecs()
+            .registerWithDefaultConfig(new ProductAggregateJsonEncoder(mapper));
+      }
+    };
+  }
+
   @Bean
   RestTemplate restTemplate() {
     return new RestTemplate();
   }
 
+  /**
+   * Connection pool shared by all calls to the core services, with a separate pool per host. The
+   * size of each host's pool can be set with app.[service].max-connections. Pool metrics are
+   * published as reactor.netty.connection.provider.*
+   *
+   * @return the connection provider used by the WebClient
+   */
+  @Bean(destroyMethod = "dispose")
+  public ConnectionProvider connectionProvider(Environment env) {
+    ConnectionProvider.Builder builder =
+        configure(ConnectionProvider.builder("core-services"), maxConnections);
+
+    for (String service : DOWNSTREAM_SERVICES) {
+      String host = env.getRequiredProperty("app." + service + ".host");
+      int port = env.getRequiredProperty("app." + service + ".port", Integer.class);
+      int hostMaxConnections =
+          env.getProperty("app." + service + ".max-connections", Integer.class, maxConnections);
+
+      LOG.info(
+          "Creates a connection pool for {}:{}, max connections = {}",
+          host,
+          port,
+          hostMaxConnections);
+      builder.forRemoteHost(
+          InetSocketAddress.createUnresolved(host, port),
+          spec -> configure(spec, hostMaxConnections));
+    }
+    return builder.build();
+  }
+
+  private <T extends ConnectionPoolSpec<T>> T configure(T spec, int maxConnections) {
+    return spec.maxConnections(maxConnections)
+        .pendingAcquireMaxCount(pendingAcquireMaxCount)
+        .pendingAcquireTimeout(pendingAcquireTimeout)
+        .maxIdleTime(maxIdleTime)
+        .maxLifeTime(maxLifeTime)
+        .evictInBackground(evictInBackground)
+        .metrics(true);
+  }
+
+  /**
+   * Replaces the default connector of the auto-configured WebClient.Builder. Responses are gzip
+   * compressed if the core service supports it, and with app.http-client.h2c=true HTTP/2 is used
+   * over cleartext connections.
+   *
+   * @return the connector used by the WebClient
+   */
+  @Bean
+  public ReactorClientHttpConnector clientHttpConnector(
+      ConnectionProvider connectionProvider,
+      @Value("${app.http-client.connect-timeout:2s}") Duration connectTimeout,
+      @Value("${app.http-client.h2c:false}") boolean h2c) {
+    HttpClient httpClient =
+        HttpClient.create(connectionProvider)
+            .compress(true)
+            .keepAlive(true)
+            .option(ChannelOption.SO_KEEPALIVE, true)
+            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connectTimeout.toMillis());
+
+    if (h2c) {
+      httpClient = httpClient.protocol(HttpProtocol.H2C, HttpProtocol.HTTP11);
+    }
+    return new ReactorClientHttpConnector(httpClient);
+  }
+
   public static void main(String[] args) {
     SpringApplication.run(ProductCompositeServiceApplication.class, args);
   }
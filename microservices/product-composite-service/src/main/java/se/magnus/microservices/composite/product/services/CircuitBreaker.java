@@ -0,0 +1,116 @@
+package se.magnus.microservices.composite.product.services;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker of the calls to one core service. It opens after a number of consecutive failed
+ * calls, and then rejects all calls for a while. After that, one trial call is let through: the
+ * breaker closes if it succeeds and opens again if it fails.
+ */
+class CircuitBreaker {
+  private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final String service;
+  private final int failureThreshold;
+  private final long openNanos;
+
+  // The state is read without locking on every call, it is only changed while holding the lock
+  private volatile State state = State.CLOSED;
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private long openedAt;
+  private boolean trialCallInFlight;
+
+  CircuitBreaker(String service, int failureThreshold, Duration openDuration) {
+    this.service = service;
+    this.failureThreshold = failureThreshold;
+    this.openNanos = openDuration.toNanos();
+  }
+
+  State state() {
+    return state;
+  }
+
+  /**
+   * @return true if a call may be made, false if the breaker is open or a trial call is already in
+   *     flight
+   */
+  boolean tryAcquire() {
+    if (state == State.CLOSED) {
+      return true;
+    }
+    synchronized (this) {
+      if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+        LOG.info("Circuit breaker of {} is half open, will let a trial call through", service);
+        state = State.HALF_OPEN;
+        trialCallInFlight = false;
+      }
+      if (state == State.HALF_OPEN && !trialCallInFlight) {
+        trialCallInFlight = true;
+        return true;
+      }
+      return state == State.CLOSED;
+    }
+  }
+
+  void onSuccess() {
+    if (state == State.HALF_OPEN) {
+      synchronized (this) {
+        if (state == State.HALF_OPEN) {
+          LOG.info("Circuit breaker of {} is closed, the trial call succeeded", service);
+          state = State.CLOSED;
+        }
+      }
+    }
+    if (consecutiveFailures.get() != 0) {
+      consecutiveFailures.set(0);
+    }
+  }
+
+  void onFailure() {
+    synchronized (this) {
+      switch (state) {
+        case CLOSED -> {
+          if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            LOG.warn(
+                "Circuit breaker of {} is open after {} consecutive failures",
+                service,
+                failureThreshold);
+            open();
+          }
+        }
+        case HALF_OPEN -> {
+          LOG.warn("Circuit breaker of {} is open again, the trial call failed", service);
+          open();
+        }
+        case OPEN -> {
+          // A call that was made before the breaker opened, the open period is not extended
+        }
+      }
+    }
+  }
+
+  // A cancelled trial call, or one that was rejected before the service was called, neither closes
+  // nor opens the breaker, the next call becomes the trial
+  void onCancel() {
+    if (state == State.HALF_OPEN) {
+      synchronized (this) {
+        trialCallInFlight = false;
+      }
+    }
+  }
+
+  private void open() {
+    state = State.OPEN;
+    openedAt = System.nanoTime();
+    consecutiveFailures.set(0);
+  }
+}
@@ -0,0 +1,261 @@
+package se.magnus.microservices.composite.product.services;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.env.Environment;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import se.magnus.api.exceptions.InvalidInputException;
+import se.magnus.api.exceptions.NotFoundException;
+
+/**
+ * Protects the calls to one core service with a timeout and a bulkhead that limits the number of
+ * concurrent calls. Idempotent calls can also be hedged: if the first request has not responded
+ * within the recent p95 latency, a second one is sent and the first response wins.
+ *
+ * <p>A circuit breaker stops calling the service after a number of consecutive failures, and fails
+ * the calls at once until the open duration has passed, see {@link CircuitBreaker}. Error responses
+ * that are answers to the request, e.g. 404 or 422, are not failures of the service.
+ *
+ * <p>Writes get their own, longer timeout. A write that times out on the client may still be
+ * committed by the service, so the timeout must be long enough for that not to happen in practice.
+ *
+ * <p>Configured with app.[service].timeout, app.[service].write-timeout,
+ * app.[service].max-concurrent-calls, app.[service].hedge.enabled, app.[service].hedge.min-delay,
+ * app.[service].circuit-breaker.enabled, app.[service].circuit-breaker.failure-threshold and
+ * app.[service].circuit-breaker.open-duration.
+ */
+public class DownstreamGuard {
+  private static final Logger LOG = LoggerFactory.getLogger(DownstreamGuard.class);
+
+  private static final double HEDGE_PERCENTILE = 0.95;
+
+  private final String service;
+  private final Duration timeout;
+  private final Duration writeTimeout;
+  private final int maxConcurrentCalls;
+  private final Semaphore bulkhead;
+  private final boolean hedgeEnabled;
+  private final Duration hedgeMinDelay;
+  private final CircuitBreaker circuitBreaker;
+
+  private final Timer latencyTimer;
+  private final Counter timeoutCounter;
+  private final Counter rejectedCounter;
+  private final Counter hedgedCounter;
+  private final Counter shortCircuitedCounter;
+
+  public DownstreamGuard(
+      String service,
+      Duration timeout,
+      Duration writeTimeout,
+      int maxConcurrentCalls,
+      boolean hedgeEnabled,
+      Duration hedgeMinDelay,
+      boolean circuitBreakerEnabled,
+      int failureThreshold,
+      Duration openDuration,
+      MeterRegistry registry) {
+    LOG.info(
+        "Guards calls to {}, timeout = {}, write timeout = {}, max concurrent calls = {},"
+            + " hedge = {}, min delay = {}",
+        service,
+        timeout,
+        writeTimeout,
+        maxConcurrentCalls,
+        hedgeEnabled,
+        hedgeMinDelay);
+    LOG.info(
+        "Circuit breaker of {}: enabled = {}, failure threshold = {}, open duration = {}",
+        service,
+        circuitBreakerEnabled,
+        failureThreshold,
+        openDuration);
+    this.service = service;
+    this.timeout = timeout;
+    this.writeTimeout = writeTimeout;
+    this.maxConcurrentCalls = maxConcurrentCalls;
+    this.bulkhead = new Semaphore(maxConcurrentCalls);
+    this.hedgeEnabled = hedgeEnabled;
+    this.hedgeMinDelay = hedgeMinDelay;
+    this.circuitBreaker =
+        circuitBreakerEnabled ? new CircuitBreaker(service, failureThreshold, openDuration) : null;
+
+    this.latencyTimer =
+        Timer.builder("product.composite.downstream.latency")
+            .description("Latency of successful calls to a core service")
+            .tag("service", service)
+            .publishPercentiles(HEDGE_PERCENTILE)
+            .register(registry);
+    this.timeoutCounter = counter("timeouts", "Calls that timed out", registry);
+    this.rejectedCounter = counter("rejected", "Calls rejected by the bulkhead", registry);
+    this.hedgedCounter = counter("hedged", "Hedged requests sent", registry);
+    this.shortCircuitedCounter =
+        counter("short-circuited", "Calls rejected by the open circuit breaker", registry);
+    if (circuitBreaker != null) {
+      Gauge.builder(
+              "product.composite.downstream.circuit-breaker.state",
+              circuitBreaker,
+              breaker -> breaker.state().ordinal())
+          .description("State of the circuit breaker: 0 closed, 1 open, 2 half open")
+          .tag("service", service)
+          .register(registry);
+    }
+  }
+
+  public static DownstreamGuard create(String service, Environment env, MeterRegistry registry) {
+    String prefix = "app." + service + ".";
+    return new DownstreamGuard(
+        service,
+        env.getProperty(prefix + "timeout", Duration.class, Duration.ofSeconds(2)),
+        env.getProperty(prefix + "write-timeout", Duration.class, Duration.ofSeconds(30)),
+        env.getProperty(prefix + "max-concurrent-calls", Integer.class, 100),
+        env.getProperty(prefix + "hedge.enabled", Boolean.class, false),
+        env.getProperty(prefix + "hedge.min-delay", Duration.class, Duration.ofMillis(50)),
+        env.getProperty(prefix + "circuit-breaker.enabled", Boolean.class, true),
+        env.getProperty(prefix + "circuit-breaker.failure-threshold", Integer.class, 5),
+        env.getProperty(
+            prefix + "circuit-breaker.open-duration", Duration.class, Duration.ofSeconds(10)),
+        registry);
+  }
+
+  public <T> Flux<T> flux(Flux<T> call) {
+    return withCircuitBreaker(withTimeout(attempt(call), timeout));
+  }
+
+  public <T> Mono<T> mono(Mono<T> call) {
+    return flux(call.flux()).singleOrEmpty();
+  }
+
+  /** Same as {@link #flux(Flux)} but with the write timeout, for calls that change data. */
+  public <T> Flux<T> writeFlux(Flux<T> call) {
+    return withCircuitBreaker(withTimeout(attempt(call), writeTimeout));
+  }
+
+  public <T> Mono<T> writeMono(Mono<T> call) {
+    return writeFlux(call.flux()).singleOrEmpty();
+  }
+
+  /**
+   * Same as {@link #flux(Flux)} but, if hedging is enabled, also sends a second request when the
+   * first one is slow. Must only be used for idempotent calls.
+   */
+  public <T> Flux<T> hedgedFlux(Flux<T> call) {
+    if (!hedgeEnabled) {
+      return flux(call);
+    }
+
+    // A failing hedge must not fail the call, the first request or the timeout will decide
+    Flux<T> hedge =
+        Flux.defer(
+            () ->
+                Mono.delay(hedgeDelay())
+                    .doOnNext(tick -> hedgedCounter.increment())
+                    .thenMany(attempt(call))
+                    .onErrorResume(error -> Flux.never()));
+
+    return withCircuitBreaker(withTimeout(Flux.firstWithSignal(attempt(call), hedge), timeout));
+  }
+
+  public <T> Mono<T> hedgedMono(Mono<T> call) {
+    return hedgedFlux(call.flux()).singleOrEmpty();
+  }
+
+  private <T> Flux<T> attempt(Flux<T> call) {
+    return Flux.defer(
+        () -> {
+          if (!bulkhead.tryAcquire()) {
+            rejectedCounter.increment();
+            return Flux.error(
+                new RejectedExecutionException(
+                    "Too many concurrent calls to " + service + ", max is " + maxConcurrentCalls));
+          }
+
+          long start = System.nanoTime();
+          return call.doFinally(
+              signal -> {
+                bulkhead.release();
+                if (signal == SignalType.ON_COMPLETE) {
+                  latencyTimer.record(System.nanoTime() - start, NANOSECONDS);
+                }
+              });
+        });
+  }
+
+  private <T> Flux<T> withTimeout(Flux<T> call, Duration timeout) {
+    return call.timeout(timeout)
+        .doOnError(
+            TimeoutException.class,
+            ex -> {
+              timeoutCounter.increment();
+              LOG.warn("Call to {} timed out after {}", service, timeout);
+            });
+  }
+
+  private <T> Flux<T> withCircuitBreaker(Flux<T> call) {
+    if (circuitBreaker == null) {
+      return call;
+    }
+    return Flux.defer(
+        () -> {
+          if (!circuitBreaker.tryAcquire()) {
+            shortCircuitedCounter.increment();
+            return Flux.error(
+                new RejectedExecutionException("The circuit breaker of " + service + " is open"));
+          }
+
+          return call.doOnComplete(circuitBreaker::onSuccess)
+              .doOnError(
+                  error -> {
+                    if (error instanceof RejectedExecutionException) {
+                      // Rejected by the bulkhead, the service was not called
+                      circuitBreaker.onCancel();
+                    } else if (isFailure(error)) {
+                      circuitBreaker.onFailure();
+                    } else {
+                      circuitBreaker.onSuccess();
+                    }
+                  })
+              .doOnCancel(circuitBreaker::onCancel);
+        });
+  }
+
+  // Client errors are answers from the service
+  private static boolean isFailure(Throwable error) {
+    if (error instanceof NotFoundException || error instanceof InvalidInputException) {
+      return false;
+    }
+    return !(error instanceof WebClientResponseException ex
+        && ex.getStatusCode().is4xxClientError());
+  }
+
+  private Duration hedgeDelay() {
+    for (ValueAtPercentile percentile : latencyTimer.takeSnapshot().percentileValues()) {
+      if (percentile.percentile() == HEDGE_PERCENTILE) {
+        Duration p95 = Duration.ofNanos((long) percentile.value(NANOSECONDS));
+        return (p95.compareTo(hedgeMinDelay) > 0) ? p95 : hedgeMinDelay;
+      }
+    }
+    return hedgeMinDelay;
+  }
+
+  private Counter counter(String name, String description, MeterRegistry registry) {
+    return Counter.builder("product.composite.downstream." + name)
+        .description(description)
+        .tag("service", service)
+        .register(registry);
+  }
+}
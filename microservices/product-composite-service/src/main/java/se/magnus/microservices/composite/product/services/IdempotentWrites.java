@@ -0,0 +1,124 @@
+package se.magnus.microservices.composite.product.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.util.context.ContextView;
+import se.magnus.api.exceptions.InvalidInputException;
+
+/**
+ * Runs a write with an idempotency key at most once. Concurrent requests with the same key share
+ * the in-flight write, and later ones complete at once without calling the core services. The key
+ * of a write that fails is dropped, so that the client can retry it.
+ *
+ * <p>A write runs to completion also if the client goes away, so that its key, and a compensation
+ * of a failed write, reflect what was actually done in the core services.
+ *
+ * <p>The keys are kept in memory, bounded by size and time to live, a retry after the key has been
+ * evicted runs the write again. A key that is reused for a different request is rejected.
+ */
+@Component
+public class IdempotentWrites {
+  private static final Logger LOG = LoggerFactory.getLogger(IdempotentWrites.class);
+
+  private static final int MAX_KEY_LENGTH = 255;
+
+  // The fingerprint is a hash of the request, the request itself is not kept
+  private record Entry(int fingerprint, Mono<Void> result) {}
+
+  private final Cache<String, Entry> writes;
+  private final ConcurrentMap<String, Entry> writesMap;
+  private final Counter replayedCounter;
+
+  @Autowired
+  public IdempotentWrites(
+      MeterRegistry registry,
+      @Value("${app.idempotency.max-size:100000}") long maxSize,
+      @Value("${app.idempotency.ttl:24h}") Duration ttl) {
+    LOG.info("Remembers idempotency keys, max size = {}, ttl = {}", maxSize, ttl);
+    this.writes =
+        Caffeine.newBuilder().maximumSize(maxSize).expireAfterWrite(ttl).recordStats().build();
+    this.writesMap = writes.asMap();
+    CaffeineCacheMetrics.monitor(registry, writes, "idempotency-keys");
+    this.replayedCounter =
+        Counter.builder("product.composite.idempotent.replayed")
+            .description("Writes answered by an earlier request with the same idempotency key")
+            .register(registry);
+  }
+
+  /**
+   * Runs the write, unless a request with the same key is in flight or has completed.
+   *
+   * @param key the idempotency key of the request, the write is always run if null
+   * @param fingerprint hash of the request, e.g. of the operation and its body
+   * @param write performs the write
+   * @return the outcome of the write, or of the earlier request with the same key
+   */
+  public Mono<Void> execute(String key, int fingerprint, Supplier<Mono<Void>> write) {
+    if (key == null) {
+      return Mono.deferContextual(context -> runDetached(Mono.defer(write).cache(), context));
+    }
+    if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+      return Mono.error(
+          new InvalidInputException(
+              "Invalid idempotency key, must be 1 to " + MAX_KEY_LENGTH + " characters"));
+    }
+
+    return Mono.deferContextual(
+        context -> {
+          AtomicReference<Entry> started = new AtomicReference<>();
+          Entry entry =
+              writesMap.computeIfAbsent(
+                  key,
+                  k -> {
+                    started.set(start(k, fingerprint, write));
+                    return started.get();
+                  });
+
+          if (entry.fingerprint() != fingerprint) {
+            return Mono.error(
+                new InvalidInputException(
+                    "Idempotency key " + key + " was already used for another request"));
+          }
+          if (entry != started.get()) {
+            LOG.debug("Write with idempotency key {} was already done or is in flight", key);
+            replayedCounter.increment();
+            return entry.result();
+          }
+          return runDetached(entry.result(), context);
+        });
+  }
+
+  private Entry start(String key, int fingerprint, Supplier<Mono<Void>> write) {
+    AtomicReference<Entry> self = new AtomicReference<>();
+    Mono<Void> shared =
+        Mono.defer(write)
+            .doOnSuccess(
+                done -> writesMap.replace(key, self.get(), new Entry(fingerprint, Mono.empty())))
+            .doOnError(ex -> writesMap.remove(key, self.get()))
+            .cache();
+    self.set(new Entry(fingerprint, shared));
+    return self.get();
+  }
+
+  // Starts the cached write with a subscriber of its own, so that it is not cancelled when the
+  // callers cancel. The subscriber has the context of the caller, e.g. its observation, so that the
+  // trace is propagated to the core services. The error is handled by the callers that are still
+  // subscribed.
+  private static Mono<Void> runDetached(Mono<Void> cachedWrite, ContextView context) {
+    cachedWrite.contextWrite(context).subscribe(null, error -> {});
+    return cachedWrite;
+  }
+}
@@ -0,0 +1,81 @@
+package se.magnus.microservices.composite.product.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+/**
+ * The last successful responses of the recommendation and review APIs, per product. They are
+ * served instead of an empty result when a call fails or the circuit breaker of the service is
+ * open. Bounded by time to live, so that stale data is not served forever, and by the total number
+ * of remembered recommendations and reviews, since a response may be one entity or a whole page.
+ *
+ * <p>Hit, miss and eviction counters are published as the "last-known-good" cache metrics, see
+ * $HOST:$PORT/actuator/metrics/cache.gets.
+ */
+@Component
+public class LastKnownGoodCache {
+  private static final Logger LOG = LoggerFactory.getLogger(LastKnownGoodCache.class);
+
+  /** One call of an API, afterId and limit are only set for pages. */
+  public record Key(String api, int productId, Integer afterId, int limit) {}
+
+  private final boolean enabled;
+  private final Cache<Key, List<?>> cache;
+
+  @Autowired
+  public LastKnownGoodCache(
+      MeterRegistry registry,
+      @Value("${app.last-known-good.enabled:true}") boolean enabled,
+      @Value("${app.last-known-good.max-weight:100000}") long maxWeight,
+      @Value("${app.last-known-good.ttl:1h}") Duration ttl) {
+    LOG.info(
+        "Creates a last known good cache, enabled = {}, max weight = {}, ttl = {}",
+        enabled,
+        maxWeight,
+        ttl);
+    this.enabled = enabled;
+    this.cache =
+        Caffeine.newBuilder()
+            .maximumWeight(maxWeight)
+            .weigher((Key key, List<?> response) -> Math.max(1, response.size()))
+            .expireAfterWrite(ttl)
+            .recordStats()
+            .build();
+    CaffeineCacheMetrics.monitor(registry, cache, "last-known-good");
+  }
+
+  /** Passes the response of the call through, and stores it when the call completes. */
+  public <T> Flux<T> remember(Key key, Flux<T> call) {
+    if (!enabled) {
+      return call;
+    }
+    return Flux.defer(
+        () -> {
+          List<T> response = new ArrayList<>();
+          return call.doOnNext(response::add).doOnComplete(() -> cache.put(key, response));
+        });
+  }
+
+  /**
+   * Returns the last stored response of the call.
+   *
+   * @param key The call
+   * @return the response, or an empty list if none is stored
+   */
+  @SuppressWarnings("unchecked")
+  public <T> List<T> get(Key key) {
+    List<?> response = enabled ? cache.getIfPresent(key) : null;
+    return (response != null) ? (List<T>) response : List.of();
+  }
+}
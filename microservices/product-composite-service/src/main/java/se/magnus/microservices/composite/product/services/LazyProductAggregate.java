@@ -0,0 +1,97 @@
+package se.magnus.microservices.composite.product.services;
+
+import java.util.List;
+import se.magnus.api.composite.product.ProductAggregate;
+import se.magnus.api.composite.product.RecommendationSummary;
+import se.magnus.api.composite.product.ReviewSummary;
+import se.magnus.api.core.product.Product;
+import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.api.core.review.Review;
+import se.magnus.util.http.ETags;
+
+/**
+ * A composite product that keeps the recommendations and reviews as received from the core
+ * services. {@link ProductAggregateJsonEncoder} writes its JSON directly from them, the summaries
+ * are only created if they are asked for.
+ *
+ * <p>Instances are shared between requests by the aggregate cache, so the summaries are created
+ * anew on each call and never stored in the instance.
+ */
+class LazyProductAggregate extends ProductAggregate {
+
+  private final List<Recommendation> recommendations;
+  private final List<Review> reviews;
+
+  LazyProductAggregate(
+      Product product,
+      List<Recommendation> recommendations,
+      List<Review> reviews,
+      String serviceAddress) {
+    super(
+        product.getProductId(),
+        product.getName(),
+        product.getWeight(),
+        null,
+        null,
+        ProductCompositeServiceImpl.serviceAddresses(
+            product, recommendations, reviews, serviceAddress));
+    this.recommendations = recommendations;
+    this.reviews = reviews;
+  }
+
+  List<Recommendation> recommendations() {
+    return recommendations;
+  }
+
+  List<Review> reviews() {
+    return reviews;
+  }
+
+  @Override
+  public List<RecommendationSummary> getRecommendations() {
+    return ProductCompositeServiceImpl.recommendationSummaries(recommendations);
+  }
+
+  @Override
+  public List<ReviewSummary> getReviews() {
+    return ProductCompositeServiceImpl.reviewSummaries(reviews);
+  }
+
+  @Override
+  public void setRecommendations(List<RecommendationSummary> recommendations) {
+    throw new UnsupportedOperationException("The recommendations are created from the core data");
+  }
+
+  @Override
+  public void setReviews(List<ReviewSummary> reviews) {
+    throw new UnsupportedOperationException("The reviews are created from the core data");
+  }
+
+  // Adds the same values as ProductCompositeServiceImpl.etag, from the content that the summaries
+  // are created from, without creating them
+  String etag() {
+    ETags.Digest digest = ETags.digest().add(getProductId()).add(getName()).add(getWeight());
+
+    digest.add((recommendations == null) ? null : recommendations.size());
+    if (recommendations != null) {
+      for (Recommendation r : recommendations) {
+        digest.add(r.getRecommendationId()).add(r.getAuthor()).add(r.getRate()).add(r.getContent());
+      }
+    }
+
+    digest.add((reviews == null) ? null : reviews.size());
+    if (reviews != null) {
+      for (Review r : reviews) {
+        digest.add(r.getReviewId()).add(r.getAuthor()).add(r.getSubject()).add(r.getContent());
+      }
+    }
+
+    // A lazy aggregate has no statistics
+    return digest
+        .add(getRecommendationsCursor())
+        .add(getReviewsCursor())
+        .add(null)
+        .add(null)
+        .weak();
+  }
+}
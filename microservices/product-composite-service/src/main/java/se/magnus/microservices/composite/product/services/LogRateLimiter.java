@@ -0,0 +1,35 @@
+package se.magnus.microservices.composite.product.services;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets at most one log event through per interval, so that an outage of a core service does not
+ * turn every failed call into a log write. The events that were dropped are counted, and reported
+ * with the next one that is let through.
+ */
+class LogRateLimiter {
+
+  private final long intervalNanos;
+  private final AtomicLong nextAllowed;
+  private final AtomicLong suppressed = new AtomicLong();
+
+  LogRateLimiter(Duration interval) {
+    this.intervalNanos = interval.toNanos();
+    this.nextAllowed = new AtomicLong(System.nanoTime());
+  }
+
+  /**
+   * @return the number of events dropped since the previous one that was let through, or -1 if
+   *     this event is dropped
+   */
+  long tryAcquire() {
+    long now = System.nanoTime();
+    long next = nextAllowed.get();
+    if (now - next >= 0 && nextAllowed.compareAndSet(next, now + intervalNanos)) {
+      return suppressed.getAndSet(0);
+    }
+    suppressed.incrementAndGet();
+    return -1;
+  }
+}
@@ -0,0 +1,86 @@
+package se.magnus.microservices.composite.product.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import se.magnus.api.composite.product.ProductAggregate;
+
+/**
+ * Cache of composite products, bounded by size and time to live.
+ *
+ * <p>A load that started before an invalidation may have read the old state of the product, so it
+ * is only cached if no invalidation has happened since its {@link #generation()}.
+ *
+ * <p>Hit, miss and eviction counters are published as the "product-aggregates" cache metrics, see
+ * $HOST:$PORT/actuator/metrics/cache.gets.
+ */
+@Component
+public class ProductAggregateCache {
+  private static final Logger LOG = LoggerFactory.getLogger(ProductAggregateCache.class);
+
+  private final boolean enabled;
+  private final Cache<Integer, ProductAggregate> cache;
+
+  // Incremented before every invalidation, so a load that raced with one is not kept
+  private final AtomicLong invalidations = new AtomicLong();
+
+  @Autowired
+  public ProductAggregateCache(
+      MeterRegistry registry,
+      @Value("${app.aggregate-cache.enabled:true}") boolean enabled,
+      @Value("${app.aggregate-cache.max-size:10000}") long maxSize,
+      @Value("${app.aggregate-cache.ttl:30s}") Duration ttl) {
+    LOG.info(
+        "Creates a product aggregate cache, enabled = {}, max size = {}, ttl = {}",
+        enabled,
+        maxSize,
+        ttl);
+    this.enabled = enabled;
+    this.cache =
+        Caffeine.newBuilder().maximumSize(maxSize).expireAfterWrite(ttl).recordStats().build();
+    CaffeineCacheMetrics.monitor(registry, cache, "product-aggregates");
+  }
+
+  /**
+   * Returns the cached aggregate for the product.
+   *
+   * @param productId Id of the product
+   * @return the composite product info, or null if it is not cached
+   */
+  public ProductAggregate getIfPresent(int productId) {
+    ProductAggregate cached = enabled ? cache.getIfPresent(productId) : null;
+    if (cached != null) {
+      LOG.debug("Found a cached product aggregate for productId: {}", productId);
+    }
+    return cached;
+  }
+
+  /** Returns the generation to pass to {@link #put}, taken before the aggregate is loaded. */
+  public long generation() {
+    return invalidations.get();
+  }
+
+  public void put(int productId, ProductAggregate aggregate, long generation) {
+    if (enabled) {
+      cache.put(productId, aggregate);
+      // The aggregate may have been loaded before a change that was already invalidated
+      if (invalidations.get() != generation) {
+        cache.invalidate(productId);
+      }
+    }
+  }
+
+  public void invalidate(int productId) {
+    LOG.debug("Invalidates the cached product aggregate for productId: {}", productId);
+    invalidations.incrementAndGet();
+    cache.invalidate(productId);
+  }
+}
@@ -0,0 +1,71 @@
+package se.magnus.microservices.composite.product.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import se.magnus.api.composite.product.ProductAggregate;
+
+/**
+ * Lets concurrent callers for the same productId share one in-flight request. The shared request
+ * is dropped once it completes, or when the product is changed, so later callers will trigger a new
+ * one.
+ */
+@Component
+public class ProductAggregateCoalescer {
+  private static final Logger LOG = LoggerFactory.getLogger(ProductAggregateCoalescer.class);
+
+  private final ConcurrentMap<Integer, Mono<ProductAggregate>> inFlight =
+      new ConcurrentHashMap<>();
+
+  private final Counter joinedCounter;
+
+  @Autowired
+  public ProductAggregateCoalescer(MeterRegistry registry) {
+    this.joinedCounter =
+        Counter.builder("product.composite.coalesced")
+            .description("Number of getProduct calls that joined an in-flight request")
+            .register(registry);
+  }
+
+  /**
+   * Joins the in-flight request for the product, or starts a new one using the loader.
+   *
+   * @param productId Id of the product
+   * @param loader creates the aggregate if no request is in flight
+   * @return the composite product info
+   */
+  public Mono<ProductAggregate> execute(int productId, Supplier<Mono<ProductAggregate>> loader) {
+    return Mono.defer(
+        () -> {
+          Mono<ProductAggregate> existing = inFlight.get(productId);
+          if (existing != null) {
+            joinedCounter.increment();
+            return existing;
+          }
+          return inFlight.computeIfAbsent(productId, id -> share(id, loader));
+        });
+  }
+
+  /** Lets callers after a change of the product start a new request instead of joining. */
+  public void invalidate(int productId) {
+    inFlight.remove(productId);
+  }
+
+  private Mono<ProductAggregate> share(int productId, Supplier<Mono<ProductAggregate>> loader) {
+    LOG.debug("Starts a shared getProduct request for productId: {}", productId);
+
+    AtomicReference<Mono<ProductAggregate>> self = new AtomicReference<>();
+    Mono<ProductAggregate> shared =
+        Mono.defer(loader).doFinally(signal -> inFlight.remove(productId, self.get())).share();
+    self.set(shared);
+    return shared;
+  }
+}
@@ -0,0 +1,189 @@
+package se.magnus.microservices.composite.product.services;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import org.reactivestreams.Publisher;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.AbstractEncoder;
+import org.springframework.core.codec.EncodingException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
+import org.springframework.util.MimeType;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import se.magnus.api.composite.product.ProductAggregate;
+import se.magnus.api.composite.product.ServiceAddresses;
+import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.api.core.review.Review;
+
+/**
+ * Writes composite products as JSON. A {@link LazyProductAggregate} is streamed to the response
+ * buffer straight from the core service responses, without creating the summaries. Other composite
+ * products are serialized by the ObjectMapper, as the default JSON encoder does.
+ *
+ * <p>The JSON is the same as the ObjectMapper writes for a ProductAggregate, see
+ * ProductAggregateJsonEncoderTests.
+ */
+public class ProductAggregateJsonEncoder extends AbstractEncoder<ProductAggregate> {
+
+  private final ObjectMapper mapper;
+
+  public ProductAggregateJsonEncoder(ObjectMapper mapper) {
+    super(MediaType.APPLICATION_JSON);
+    this.mapper = mapper;
+  }
+
+  @Override
+  public boolean canEncode(ResolvableType elementType, MimeType mimeType) {
+    return ProductAggregate.class.isAssignableFrom(elementType.toClass())
+        && super.canEncode(elementType, mimeType);
+  }
+
+  @Override
+  public Flux<DataBuffer> encode(
+      Publisher<? extends ProductAggregate> inputStream,
+      DataBufferFactory bufferFactory,
+      ResolvableType elementType,
+      MimeType mimeType,
+      Map<String, Object> hints) {
+
+    if (inputStream instanceof Mono) {
+      return Mono.from(inputStream)
+          .map(aggregate -> encodeValue(aggregate, bufferFactory, elementType, mimeType, hints))
+          .flux();
+    }
+
+    // A stream of composite products is written as one JSON array, as the default encoder does
+    return Flux.from(inputStream)
+        .collectList()
+        .map(
+            aggregates ->
+                write(
+                    bufferFactory,
+                    generator -> {
+                      generator.writeStartArray();
+                      for (ProductAggregate aggregate : aggregates) {
+                        write(generator, aggregate);
+                      }
+                      generator.writeEndArray();
+                    }))
+        .flux();
+  }
+
+  @Override
+  public DataBuffer encodeValue(
+      ProductAggregate aggregate,
+      DataBufferFactory bufferFactory,
+      ResolvableType valueType,
+      MimeType mimeType,
+      Map<String, Object> hints) {
+    return write(bufferFactory, generator -> write(generator, aggregate));
+  }
+
+  private interface JsonWriter {
+    void write(JsonGenerator generator) throws IOException;
+  }
+
+  private DataBuffer write(DataBufferFactory bufferFactory, JsonWriter writer) {
+    DataBuffer buffer = bufferFactory.allocateBuffer(1024);
+    boolean release = true;
+    try (OutputStream out = buffer.asOutputStream();
+        JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+      writer.write(generator);
+      generator.flush();
+      release = false;
+      return buffer;
+    } catch (IOException ex) {
+      throw new EncodingException("Could not write JSON: " + ex.getMessage(), ex);
+    } finally {
+      if (release) {
+        DataBufferUtils.release(buffer);
+      }
+    }
+  }
+
+  void write(JsonGenerator generator, ProductAggregate aggregate) throws IOException {
+    if (!(aggregate instanceof LazyProductAggregate lazy)) {
+      mapper.writeValue(generator, aggregate);
+      return;
+    }
+
+    generator.writeStartObject();
+    generator.writeNumberField("productId", lazy.getProductId());
+    generator.writeStringField("name", lazy.getName());
+    generator.writeNumberField("weight", lazy.getWeight());
+    writeRecommendations(generator, lazy.recommendations());
+    writeReviews(generator, lazy.reviews());
+    writeServiceAddresses(generator, lazy.getServiceAddresses());
+    writeNumberField(generator, "recommendationsCursor", lazy.getRecommendationsCursor());
+    writeNumberField(generator, "reviewsCursor", lazy.getReviewsCursor());
+    generator.writeFieldName("recommendationStats");
+    mapper.writeValue(generator, lazy.getRecommendationStats());
+    generator.writeFieldName("reviewStats");
+    mapper.writeValue(generator, lazy.getReviewStats());
+    generator.writeEndObject();
+  }
+
+  private void writeRecommendations(JsonGenerator generator, List<Recommendation> recommendations)
+      throws IOException {
+    generator.writeFieldName("recommendations");
+    if (recommendations == null) {
+      generator.writeNull();
+      return;
+    }
+    generator.writeStartArray();
+    for (Recommendation r : recommendations) {
+      generator.writeStartObject();
+      generator.writeNumberField("recommendationId", r.getRecommendationId());
+      generator.writeStringField("author", r.getAuthor());
+      generator.writeNumberField("rate", r.getRate());
+      generator.writeStringField("content", r.getContent());
+      generator.writeEndObject();
+    }
+    generator.writeEndArray();
+  }
+
+  private void writeReviews(JsonGenerator generator, List<Review> reviews) throws IOException {
+    generator.writeFieldName("reviews");
+    if (reviews == null) {
+      generator.writeNull();
+      return;
+    }
+    generator.writeStartArray();
+    for (Review r : reviews) {
+      generator.writeStartObject();
+      generator.writeNumberField("reviewId", r.getReviewId());
+      generator.writeStringField("author", r.getAuthor());
+      generator.writeStringField("subject", r.getSubject());
+      generator.writeStringField("content", r.getContent());
+      generator.writeEndObject();
+    }
+    generator.writeEndArray();
+  }
+
+  private void writeServiceAddresses(JsonGenerator generator, ServiceAddresses addresses)
+      throws IOException {
+    generator.writeObjectFieldStart("serviceAddresses");
+    generator.writeStringField("cmp", addresses.getCmp());
+    generator.writeStringField("pro", addresses.getPro());
+    generator.writeStringField("rev", addresses.getRev());
+    generator.writeStringField("rec", addresses.getRec());
+    generator.writeEndObject();
+  }
+
+  private void writeNumberField(JsonGenerator generator, String name, Integer value)
+      throws IOException {
+    generator.writeFieldName(name);
+    if (value == null) {
+      generator.writeNull();
+    } else {
+      generator.writeNumber(value);
+    }
+  }
+}
@@ -1,19 +1,32 @@
 package se.magnus.microservices.composite.product.services;
 
-import static java.util.logging.Level.FINE;
-import static reactor.core.publisher.Flux.empty;
+import static java.util.stream.Collectors.joining;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static org.springframework.http.HttpStatus.UNPROCESSABLE_ENTITY;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON;
 import static reactor.core.publisher.Mono.just;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import java.io.IOException;
-import java.util.Objects;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.codec.CodecException;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpRequest;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.UnsupportedMediaTypeException;
+import org.springframework.web.reactive.function.client.ClientResponse;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.publisher.Flux;
@@ -22,11 +35,15 @@ import se.magnus.api.core.product.Product;
 import se.magnus.api.core.product.ProductService;
 import se.magnus.api.core.recommendation.Recommendation;
 import se.magnus.api.core.recommendation.RecommendationService;
+import se.magnus.api.core.recommendation.RecommendationStats;
 import se.magnus.api.core.review.Review;
 import se.magnus.api.core.review.ReviewService;
+import se.magnus.api.core.review.ReviewStats;
 import se.magnus.api.exceptions.InvalidInputException;
 import se.magnus.api.exceptions.NotFoundException;
+import se.magnus.microservices.composite.product.services.LastKnownGoodCache.Key;
 import se.magnus.util.http.HttpErrorInfo;
+import se.magnus.util.reactor.SignalLog;
 
 @Component
 public class ProductCompositeIntegration
@@ -34,31 +51,90 @@ public class ProductCompositeIntegration
 
   private static final Logger LOG = LoggerFactory.getLogger(ProductCompositeIntegration.class);
 
+  /**
+   * Context key of an AtomicBoolean that is set when recommendations or reviews could not be
+   * fetched and were replaced by the last known good or an empty result, i.e. when the caller
+   * builds a partial aggregate.
+   */
+  public static final String PARTIAL_RESULT = "partialResult";
+
+  // URIs are given as templates, so the http.client.requests metrics are tagged with one uri per
+  // API instead of one per product
+  private static final String PRODUCT_QUERY = "?productId={productId}";
+  private static final String PAGE_QUERY = PRODUCT_QUERY + "&limit={limit}";
+  private static final String BATCH_QUERY = "/batch?productIds={productIds}";
+
+  // Smile is a binary encoding of the JSON data model, more compact and cheaper to write and parse,
+  // see WireFormatBenchmark
+  private static final MediaType APPLICATION_SMILE =
+      new MediaType("application", "x-jackson-smile");
+  private static final MediaType APPLICATION_STREAM_SMILE =
+      new MediaType("application", "stream+x-jackson-smile");
+  private static final MediaType APPLICATION_JSON_FALLBACK =
+      MediaType.parseMediaType("application/json;q=0.9");
+  private static final MediaType APPLICATION_NDJSON_FALLBACK =
+      MediaType.parseMediaType("application/x-ndjson;q=0.9");
+
   private final WebClient webClient;
   private final RestTemplate restTemplate;
-  private final ObjectMapper mapper;
   private final String productServiceUrl;
   private final String recommendationServiceUrl;
   private final String reviewServiceUrl;
+  private final DownstreamGuard productGuard;
+  private final DownstreamGuard recommendationGuard;
+  private final DownstreamGuard reviewGuard;
+  private final SignalLog signalLog;
+  private final int maxErrorBodySize;
+  private final LogRateLimiter warnLimiter;
+  private final LastKnownGoodCache lastKnownGood;
+
+  // Accepted media types of single values and of streamed lists, and the type of request bodies
+  private final MediaType[] valueTypes;
+  private final MediaType[] streamTypes;
+  private final MediaType bodyType;
 
   @Autowired
   public ProductCompositeIntegration(
       WebClient.Builder webClient,
       RestTemplate restTemplate,
-      ObjectMapper mapper,
+      Environment env,
+      MeterRegistry registry,
+      LastKnownGoodCache lastKnownGood,
       @Value("${app.product-service.host}") String productServiceHost,
       @Value("${app.product-service.port}") int productServicePort,
       @Value("${app.recommendation-service.host}") String recommendationServiceHost,
       @Value("${app.recommendation-service.port}") int recommendationServicePort,
       @Value("${app.review-service.host}") String reviewServiceHost,
-      @Value("${app.review-service.port}") int reviewServicePort) {
+      @Value("${app.review-service.port}") int reviewServicePort,
+      @Value("${app.reactor-log.enabled:true}") boolean reactorLogEnabled,
+      @Value("${app.core-wire-format:smile}") String wireFormat,
+      @Value("${app.http-client.max-error-body-size:16KB}") DataSize maxErrorBodySize,
+      @Value("${app.http-client.error-log-interval:1s}") Duration errorLogInterval) {
     this.webClient = webClient.build();
     this.restTemplate = restTemplate;
-    this.mapper = mapper;
     productServiceUrl = "http://" + productServiceHost + ":" + productServicePort + "/product";
     recommendationServiceUrl =
         "http://" + recommendationServiceHost + ":" + recommendationServicePort + "/recommendation";
     reviewServiceUrl = "http://" + reviewServiceHost + ":" + reviewServicePort + "/review";
+    productGuard = DownstreamGuard.create("product-service", env, registry);
+    recommendationGuard = DownstreamGuard.create("recommendation-service", env, registry);
+    reviewGuard = DownstreamGuard.create("review-service", env, registry);
+    signalLog = new SignalLog(LOG, reactorLogEnabled);
+    this.maxErrorBodySize = (int) maxErrorBodySize.toBytes();
+    warnLimiter = new LogRateLimiter(errorLogInterval);
+    this.lastKnownGood = lastKnownGood;
+
+    // JSON stays acceptable, so core services that don't produce Smile can still be called
+    LOG.info("Uses {} to call the core services", wireFormat);
+    if ("smile".equals(wireFormat)) {
+      valueTypes = new MediaType[] {APPLICATION_SMILE, APPLICATION_JSON_FALLBACK};
+      streamTypes = new MediaType[] {APPLICATION_STREAM_SMILE, APPLICATION_NDJSON_FALLBACK};
+      bodyType = APPLICATION_SMILE;
+    } else {
+      valueTypes = new MediaType[] {APPLICATION_JSON};
+      streamTypes = new MediaType[] {APPLICATION_NDJSON};
+      bodyType = APPLICATION_JSON;
+    }
   }
 
   @Override
@@ -67,36 +143,57 @@ public class ProductCompositeIntegration
     return webClient
         .post()
         .uri(productServiceUrl)
+        .contentType(bodyType)
         .body(just(body), Product.class)
+        .accept(valueTypes)
         .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
         .bodyToMono(Product.class)
-        .log(LOG.getName(), FINE)
-        .onErrorMap(WebClientResponseException.class, this::handleException);
+        .transform(signalLog::mono)
+        .transform(productGuard::writeMono);
   }
 
   @Override
   public Mono<Product> getProduct(int productId) {
-    String url = productServiceUrl + "/" + productId;
-    LOG.debug("Will call the getProduct API on URL: {}", url);
+    LOG.debug("Will call the getProduct API for productId: {}", productId);
 
     return webClient
         .get()
-        .uri(url)
+        .uri(productServiceUrl + "/{productId}", productId)
+        .accept(valueTypes)
         .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
         .bodyToMono(Product.class)
-        .log(LOG.getName(), FINE)
-        .onErrorMap(WebClientResponseException.class, this::handleException);
+        .transform(signalLog::mono)
+        .transform(productGuard::hedgedMono);
+  }
+
+  @Override
+  public Flux<Product> getProducts(List<Integer> productIds) {
+    LOG.debug("Will call the getProducts API for productIds: {}", productIds);
+
+    // Lists are requested as NDJSON, so each element is decoded as soon as it arrives
+    return webClient
+        .get()
+        .uri(productServiceUrl + BATCH_QUERY, toQueryValue(productIds))
+        .accept(streamTypes)
+        .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
+        .bodyToFlux(Product.class)
+        .transform(signalLog::flux)
+        .transform(productGuard::hedgedFlux);
   }
 
   @Override
   public Mono<Void> deleteProduct(int productId) {
     return webClient
         .delete()
-        .uri(productServiceUrl + "/" + productId)
+        .uri(productServiceUrl + "/{productId}", productId)
         .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
         .bodyToMono(Void.class)
-        .log(LOG.getName(), FINE)
-        .onErrorMap(WebClientResponseException.class, this::handleException);
+        .transform(signalLog::mono)
+        .transform(productGuard::writeMono);
   }
 
   @Override
@@ -104,36 +201,115 @@ public class ProductCompositeIntegration
     return webClient
         .post()
         .uri(recommendationServiceUrl)
+        .contentType(bodyType)
         .body(just(body), Recommendation.class)
+        .accept(valueTypes)
         .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
         .bodyToMono(Recommendation.class)
-        .log(LOG.getName(), FINE)
-        .onErrorMap(WebClientResponseException.class, this::handleException);
+        .transform(signalLog::mono)
+        .transform(recommendationGuard::writeMono);
+  }
+
+  @Override
+  public Flux<Recommendation> createRecommendations(List<Recommendation> body) {
+    return webClient
+        .post()
+        .uri(recommendationServiceUrl + "/batch")
+        .contentType(bodyType)
+        .bodyValue(body)
+        .accept(valueTypes)
+        .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
+        .bodyToFlux(Recommendation.class)
+        .transform(signalLog::flux)
+        .transform(recommendationGuard::writeFlux);
   }
 
   @Override
   public Flux<Recommendation> getRecommendations(int productId) {
-    String url = recommendationServiceUrl + "?productId=" + productId;
-    LOG.debug("Will call the getRecommendations API on URL: {}", url);
+    LOG.debug("Will call the getRecommendations API for productId: {}", productId);
+
+    return webClient
+        .get()
+        .uri(recommendationServiceUrl + PRODUCT_QUERY, productId)
+        .accept(streamTypes)
+        .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
+        .bodyToFlux(Recommendation.class)
+        .transform(signalLog::flux)
+        .transform(recommendationGuard::hedgedFlux)
+        .transform(call -> withFallback(new Key("getRecommendations", productId, null, 0), call));
+  }
+
+  @Override
+  public Flux<Recommendation> getRecommendationsPage(int productId, Integer afterId, int limit) {
+    LOG.debug(
+        "Will call the getRecommendationsPage API for productId: {}, afterId: {}, limit: {}",
+        productId,
+        afterId,
+        limit);
+
+    // afterId is the last variable, it is ignored when the template leaves it out
+    return webClient
+        .get()
+        .uri(recommendationServiceUrl + pageQuery(afterId), productId, limit, afterId)
+        .accept(streamTypes)
+        .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
+        .bodyToFlux(Recommendation.class)
+        .transform(signalLog::flux)
+        .transform(recommendationGuard::hedgedFlux)
+        .transform(
+            call ->
+                withFallback(new Key("getRecommendationsPage", productId, afterId, limit), call));
+  }
+
+  @Override
+  public Mono<RecommendationStats> getRecommendationStats(int productId) {
+    LOG.debug("Will call the getRecommendationStats API for productId: {}", productId);
 
     return webClient
         .get()
-        .uri(url)
+        .uri(recommendationServiceUrl + "/stats" + PRODUCT_QUERY, productId)
+        .accept(valueTypes)
         .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
+        .bodyToMono(RecommendationStats.class)
+        .transform(signalLog::mono)
+        .transform(recommendationGuard::hedgedMono)
+        .as(
+            call ->
+                withFallback(new Key("getRecommendationStats", productId, null, 0), call.flux())
+                    .singleOrEmpty());
+  }
+
+  @Override
+  public Flux<Recommendation> getRecommendationsByProductIds(List<Integer> productIds) {
+    LOG.debug("Will call the getRecommendationsByProductIds API for productIds: {}", productIds);
+
+    return webClient
+        .get()
+        .uri(recommendationServiceUrl + BATCH_QUERY, toQueryValue(productIds))
+        .accept(streamTypes)
+        .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
         .bodyToFlux(Recommendation.class)
-        .log(LOG.getName(), FINE)
-        .onErrorResume(error -> empty());
+        .transform(signalLog::flux)
+        .transform(recommendationGuard::hedgedFlux)
+        .onErrorResume(error -> partialResult("getRecommendationsByProductIds", error));
   }
 
   @Override
   public Mono<Void> deleteRecommendations(int productId) {
     return webClient
         .delete()
-        .uri(recommendationServiceUrl + "?productId=" + productId)
+        .uri(recommendationServiceUrl + PRODUCT_QUERY, productId)
         .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
         .bodyToMono(Void.class)
-        .log(LOG.getName(), FINE)
-        .onErrorMap(WebClientResponseException.class, this::handleException);
+        .transform(signalLog::mono)
+        .transform(recommendationGuard::writeMono);
   }
 
   @Override
@@ -141,63 +317,203 @@ public class ProductCompositeIntegration
     return webClient
         .post()
         .uri(reviewServiceUrl)
+        .contentType(bodyType)
         .body(just(body), Review.class)
+        .accept(valueTypes)
         .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
         .bodyToMono(Review.class)
-        .log(LOG.getName(), FINE)
-        .onErrorMap(WebClientResponseException.class, this::handleException);
+        .transform(signalLog::mono)
+        .transform(reviewGuard::writeMono);
+  }
+
+  @Override
+  public Flux<Review> createReviews(List<Review> body) {
+    return webClient
+        .post()
+        .uri(reviewServiceUrl + "/batch")
+        .contentType(bodyType)
+        .bodyValue(body)
+        .accept(valueTypes)
+        .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
+        .bodyToFlux(Review.class)
+        .transform(signalLog::flux)
+        .transform(reviewGuard::writeFlux);
   }
 
   @Override
   public Flux<Review> getReviews(int productId) {
-    String url = reviewServiceUrl + "?productId=" + productId;
-    LOG.debug("Will call the getReviews API on URL: {}", url);
+    LOG.debug("Will call the getReviews API for productId: {}", productId);
+
+    return webClient
+        .get()
+        .uri(reviewServiceUrl + PRODUCT_QUERY, productId)
+        .accept(streamTypes)
+        .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
+        .bodyToFlux(Review.class)
+        .transform(signalLog::flux)
+        .transform(reviewGuard::hedgedFlux)
+        .transform(call -> withFallback(new Key("getReviews", productId, null, 0), call));
+  }
+
+  @Override
+  public Flux<Review> getReviewsPage(int productId, Integer afterId, int limit) {
+    LOG.debug(
+        "Will call the getReviewsPage API for productId: {}, afterId: {}, limit: {}",
+        productId,
+        afterId,
+        limit);
 
+    // afterId is the last variable, it is ignored when the template leaves it out
     return webClient
         .get()
-        .uri(url)
+        .uri(reviewServiceUrl + pageQuery(afterId), productId, limit, afterId)
+        .accept(streamTypes)
         .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
         .bodyToFlux(Review.class)
-        .log(LOG.getName(), FINE)
-        .onErrorResume(error -> empty());
+        .transform(signalLog::flux)
+        .transform(reviewGuard::hedgedFlux)
+        .transform(
+            call -> withFallback(new Key("getReviewsPage", productId, afterId, limit), call));
+  }
+
+  @Override
+  public Mono<ReviewStats> getReviewStats(int productId) {
+    LOG.debug("Will call the getReviewStats API for productId: {}", productId);
+
+    return webClient
+        .get()
+        .uri(reviewServiceUrl + "/stats" + PRODUCT_QUERY, productId)
+        .accept(valueTypes)
+        .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
+        .bodyToMono(ReviewStats.class)
+        .transform(signalLog::mono)
+        .transform(reviewGuard::hedgedMono)
+        .as(
+            call ->
+                withFallback(new Key("getReviewStats", productId, null, 0), call.flux())
+                    .singleOrEmpty());
+  }
+
+  @Override
+  public Flux<Review> getReviewsByProductIds(List<Integer> productIds) {
+    LOG.debug("Will call the getReviewsByProductIds API for productIds: {}", productIds);
+
+    return webClient
+        .get()
+        .uri(reviewServiceUrl + BATCH_QUERY, toQueryValue(productIds))
+        .accept(streamTypes)
+        .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
+        .bodyToFlux(Review.class)
+        .transform(signalLog::flux)
+        .transform(reviewGuard::hedgedFlux)
+        .onErrorResume(error -> partialResult("getReviewsByProductIds", error));
   }
 
   @Override
   public Mono<Void> deleteReviews(int productId) {
     return webClient
         .delete()
-        .uri(reviewServiceUrl + "?productId=" + productId)
+        .uri(reviewServiceUrl + PRODUCT_QUERY, productId)
         .retrieve()
+        .onStatus(HttpStatusCode::isError, this::decodeError)
         .bodyToMono(Void.class)
-        .log(LOG.getName(), FINE)
-        .onErrorMap(WebClientResponseException.class, this::handleException);
+        .transform(signalLog::mono)
+        .transform(reviewGuard::writeMono);
   }
 
-  private Throwable handleException(Throwable ex) {
-    if (!(ex instanceof WebClientResponseException wcre)) {
-      LOG.warn("Got a unexpected error: {}, will rethrow it", ex.toString());
-      return ex;
-    }
+  /**
+   * Remembers the response of a call, and if a later call of the same API for the same product
+   * fails, or is rejected by an open circuit breaker, returns the remembered response instead.
+   */
+  private <T> Flux<T> withFallback(Key key, Flux<T> call) {
+    return lastKnownGood
+        .remember(key, call)
+        .onErrorResume(error -> partialResult(key.api(), error, lastKnownGood.get(key)));
+  }
 
-    switch (Objects.requireNonNull(HttpStatus.resolve(wcre.getStatusCode().value()))) {
-      case NOT_FOUND:
-        return new NotFoundException(getErrorMessage(wcre));
+  private <T> Flux<T> partialResult(String api, Throwable error) {
+    return partialResult(api, error, List.of());
+  }
 
-      case UNPROCESSABLE_ENTITY:
-        return new InvalidInputException(getErrorMessage(wcre));
+  private <T> Flux<T> partialResult(String api, Throwable error, List<T> fallback) {
+    warn(
+        "{} failed, will return {} last known results: {}",
+        api,
+        fallback.size(),
+        error.toString());
+    return Flux.deferContextual(
+        ctx -> {
+          ctx.<AtomicBoolean>getOrEmpty(PARTIAL_RESULT).ifPresent(partial -> partial.set(true));
+          return Flux.fromIterable(fallback);
+        });
+  }
 
-      default:
-        LOG.warn("Got an unexpected HTTP error: {}, will rethrow it", wcre.getStatusCode());
-        LOG.warn("Error body: {}", wcre.getResponseBodyAsString());
-        return ex;
+  private String pageQuery(Integer afterId) {
+    return (afterId == null) ? PAGE_QUERY : PAGE_QUERY + "&afterId={afterId}";
+  }
+
+  private String toQueryValue(List<Integer> productIds) {
+    return productIds.stream().map(String::valueOf).collect(joining(","));
+  }
+
+  /**
+   * Maps an error response to an exception. The error body is read and decoded by the codecs, as
+   * response bodies are, and at most maxErrorBodySize bytes of it are read. A body that is cut off
+   * or can't be decoded is replaced by the status of the response.
+   */
+  private Mono<Throwable> decodeError(ClientResponse response) {
+    HttpStatusCode status = response.statusCode();
+    HttpRequest request = response.request();
+    String fallbackMessage = status + " from " + request.getMethod() + " " + request.getURI();
+
+    return response
+        .mutate()
+        .body(body -> DataBufferUtils.takeUntilByteCount(body, maxErrorBodySize))
+        .build()
+        .bodyToMono(HttpErrorInfo.class)
+        .mapNotNull(HttpErrorInfo::getMessage)
+        .onErrorResume(
+            ex -> ex instanceof CodecException || ex instanceof UnsupportedMediaTypeException,
+            ex -> Mono.empty())
+        .defaultIfEmpty(fallbackMessage)
+        .map(message -> toException(response, message));
+  }
+
+  private Throwable toException(ClientResponse response, String message) {
+    HttpStatusCode status = response.statusCode();
+    if (status.value() == NOT_FOUND.value()) {
+      return new NotFoundException(message);
+    }
+    if (status.value() == UNPROCESSABLE_ENTITY.value()) {
+      return new InvalidInputException(message);
     }
+
+    warn("Got an unexpected HTTP error: {}, will rethrow it. Error message: {}", status, message);
+    HttpStatus resolved = HttpStatus.resolve(status.value());
+    return WebClientResponseException.create(
+        status,
+        (resolved != null) ? resolved.getReasonPhrase() : "",
+        response.headers().asHttpHeaders(),
+        null,
+        null,
+        response.request());
   }
 
-  private String getErrorMessage(WebClientResponseException ex) {
-    try {
-      return mapper.readValue(ex.getResponseBodyAsString(), HttpErrorInfo.class).getMessage();
-    } catch (IOException ioex) {
-      return ex.getMessage();
+  // At most one warning per interval, an outage would otherwise log a warning per failed call
+  private void warn(String format, Object... args) {
+    long suppressed = warnLimiter.tryAcquire();
+    if (suppressed < 0) {
+      return;
+    }
+    if (suppressed > 0) {
+      format = format + " (" + suppressed + " warnings suppressed since the last one)";
     }
+    LOG.warn(format, args);
   }
 }
@@ -1,90 +1,163 @@
 package se.magnus.microservices.composite.product.services;
 
-import static java.util.logging.Level.FINE;
-
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.concurrent.Queues;
+import reactor.util.context.Context;
 import se.magnus.api.composite.product.*;
 import se.magnus.api.core.product.Product;
 import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.api.core.recommendation.RecommendationStats;
 import se.magnus.api.core.review.Review;
+import se.magnus.api.core.review.ReviewStats;
+import se.magnus.api.exceptions.InvalidInputException;
+import se.magnus.util.http.ETags;
 import se.magnus.util.http.ServiceUtil;
+import se.magnus.util.reactor.SignalLog;
 
 @RestController
 public class ProductCompositeServiceImpl implements ProductCompositeService {
   private static final Logger LOG = LoggerFactory.getLogger(ProductCompositeServiceImpl.class);
 
+  private static final String FIELD_RECOMMENDATIONS = "recommendations";
+  private static final String FIELD_REVIEWS = "reviews";
+  private static final List<String> FIELDS =
+      List.of("product", FIELD_RECOMMENDATIONS, FIELD_REVIEWS);
+
   private final ServiceUtil serviceUtil;
   private ProductCompositeIntegration integration;
+  private final ProductAggregateCache cache;
+  private final ProductAggregateCoalescer coalescer;
+  private final IdempotentWrites idempotentWrites;
+  private final int maxBatchSize;
+  private final int pageSize;
+  private final boolean directJson;
+  private final SignalLog signalLog;
+  private final int createChunkSize;
+  private final int createConcurrency;
+  private final AtomicInteger recommendationsInFlight;
+  private final AtomicInteger reviewsInFlight;
+  private final Counter compensationsCounter;
 
   @Autowired
   public ProductCompositeServiceImpl(
-      ServiceUtil serviceUtil, ProductCompositeIntegration integration) {
+      ServiceUtil serviceUtil,
+      ProductCompositeIntegration integration,
+      ProductAggregateCache cache,
+      ProductAggregateCoalescer coalescer,
+      IdempotentWrites idempotentWrites,
+      MeterRegistry registry,
+      @Value("${app.max-batch-size:200}") int maxBatchSize,
+      @Value("${app.aggregate-page-size:100}") int pageSize,
+      @Value("${app.aggregate-json:direct}") String aggregateJson,
+      @Value("${app.reactor-log.enabled:true}") boolean reactorLogEnabled,
+      @Value("${app.child-create.chunk-size:100}") int createChunkSize,
+      @Value("${app.child-create.max-concurrency:4}") int createConcurrency) {
     this.serviceUtil = serviceUtil;
     this.integration = integration;
+    this.cache = cache;
+    this.coalescer = coalescer;
+    this.idempotentWrites = idempotentWrites;
+    this.maxBatchSize = maxBatchSize;
+    this.pageSize = pageSize;
+    this.directJson = "direct".equals(aggregateJson);
+    this.signalLog = new SignalLog(LOG, reactorLogEnabled);
+    this.createChunkSize = createChunkSize;
+    this.createConcurrency = createConcurrency;
+    this.recommendationsInFlight = inFlightGauge("recommendations", registry);
+    this.reviewsInFlight = inFlightGauge("reviews", registry);
+    this.compensationsCounter =
+        Counter.builder("product.composite.create.compensated")
+            .description("Failed composite creates whose created parts were deleted again")
+            .register(registry);
+  }
+
+  private static AtomicInteger inFlightGauge(String entity, MeterRegistry registry) {
+    AtomicInteger inFlight = new AtomicInteger();
+    Gauge.builder("product.composite.create.in-flight", inFlight, AtomicInteger::get)
+        .description("Children of new composite products that are being created")
+        .tag("entity", entity)
+        .register(registry);
+    return inFlight;
   }
 
-  // 共通化されたエンティティの作成とMonoリストへの追加メソッド
+  // 共通化されたエンティティの一括作成メソッド
+  // The entities are sent in bulk calls of at most app.child-create.chunk-size entities, and one
+  // create makes at most app.child-create.max-concurrency calls at a time, so that a product with
+  // many children does not take all connections to the core service. The limit is per create,
+  // concurrent creates are only bounded together by app.<service>.max-concurrent-calls. A chunk
+  // size of 0 sends them all in one call. A failed call does not cancel the others, see
+  // createProductSaga.
   private <T, U> Mono<Void> createEntitiesMono(
-      List<T> entities, Function<T, U> mapper, Function<U, Mono<Void>> monoCreator) {
+      List<T> entities,
+      Function<T, U> mapper,
+      Function<List<U>, Flux<U>> bulkCreator,
+      AtomicInteger inFlight) {
     if (entities == null || entities.isEmpty()) {
       return Mono.empty();
     }
 
-    List<Mono<Void>> monoList =
-        entities.stream()
-            .map(entity -> monoCreator.apply(mapper.apply(entity)))
-            .collect(Collectors.toList());
+    List<U> list = entities.stream().map(mapper).collect(Collectors.toList());
+    int chunkSize = (createChunkSize > 0) ? createChunkSize : list.size();
+
+    return Flux.fromIterable(list)
+        .buffer(chunkSize)
+        .flatMapDelayError(
+            chunk -> createChunk(chunk, bulkCreator, inFlight),
+            createConcurrency,
+            Queues.XS_BUFFER_SIZE)
+        .then();
+  }
 
-    return Mono.when(monoList);
+  private <U> Mono<Void> createChunk(
+      List<U> chunk, Function<List<U>, Flux<U>> bulkCreator, AtomicInteger inFlight) {
+    return Mono.defer(
+        () -> {
+          inFlight.addAndGet(chunk.size());
+          return bulkCreator
+              .apply(chunk)
+              .then()
+              .doFinally(signal -> inFlight.addAndGet(-chunk.size()));
+        });
   }
 
   @Override
-  public Mono<Void> createProduct(ProductAggregate body) {
+  public Mono<Void> createProduct(ProductAggregate body, String idempotencyKey) {
     try {
       LOG.info("Will create a new composite entity for product.id: {}", body.getProductId());
 
-      Mono<Void> productMono =
-          integration
-              .createProduct(
-                  new Product(body.getProductId(), body.getName(), body.getWeight(), null))
-              .then();
-
-      Mono<Void> recommendationsMono =
-          createEntitiesMono(
-              body.getRecommendations(),
-              r ->
-                  new Recommendation(
-                      body.getProductId(),
-                      r.getRecommendationId(),
-                      r.getAuthor(),
-                      r.getRate(),
-                      r.getContent(),
-                      null),
-              recommendation -> integration.createRecommendation(recommendation).then());
-
-      Mono<Void> reviewsMono =
-          createEntitiesMono(
-              body.getReviews(),
-              r ->
-                  new Review(
-                      body.getProductId(),
-                      r.getReviewId(),
-                      r.getAuthor(),
-                      r.getSubject(),
-                      r.getContent(),
-                      null),
-              review -> integration.createReview(review).then());
-
-      return Mono.zip(productMono, recommendationsMono, reviewsMono)
-          .doOnError(ex -> LOG.warn("product create failed: {}", ex.toString()))
-          .then();
+      // The cache is invalidated when the write ends, also if the client has gone away before
+      return idempotentWrites
+          .execute(
+              idempotencyKey,
+              Objects.hash("createProduct", body),
+              () ->
+                  createProductSaga(body)
+                      .doFinally(signal -> invalidate(body.getProductId())))
+          .doOnError(ex -> LOG.warn("product create failed: {}", ex.toString()));
 
     } catch (RuntimeException re) {
       LOG.warn("createCompositeProduct failed: {}", re.toString());
@@ -92,39 +165,429 @@ public class ProductCompositeServiceImpl implements ProductCompositeService {
     }
   }
 
+  // The product is created first, and then its recommendations and reviews. If any of those
+  // fail, what was created is deleted again, so that no orphans are left behind and a retry does
+  // not fail on duplicate keys. A failed product create is not undone, the product service may
+  // have rejected it because the product already exists.
+  private Mono<Void> createProductSaga(ProductAggregate body) {
+    Mono<Void> productMono =
+        integration
+            .createProduct(
+                new Product(body.getProductId(), body.getName(), body.getWeight(), null))
+            .then();
+
+    Mono<Void> recommendationsMono =
+        createEntitiesMono(
+            body.getRecommendations(),
+            r ->
+                new Recommendation(
+                    body.getProductId(),
+                    r.getRecommendationId(),
+                    r.getAuthor(),
+                    r.getRate(),
+                    r.getContent(),
+                    null),
+            integration::createRecommendations,
+            recommendationsInFlight);
+
+    Mono<Void> reviewsMono =
+        createEntitiesMono(
+            body.getReviews(),
+            r ->
+                new Review(
+                    body.getProductId(),
+                    r.getReviewId(),
+                    r.getAuthor(),
+                    r.getSubject(),
+                    r.getContent(),
+                    null),
+            integration::createReviews,
+            reviewsInFlight);
+
+    // whenDelayError() waits for all children also when some of them fail, so that the
+    // compensation does not race with creates that are still in flight
+    return productMono.then(
+        Mono.whenDelayError(recommendationsMono, reviewsMono)
+            .onErrorResume(ex -> compensate(body.getProductId(), ex)));
+  }
+
+  // The delayed errors of several calls are combined, the first one is reported to the client
+  private static Throwable firstError(Throwable error) {
+    while (Exceptions.isMultiple(error)) {
+      error = Exceptions.unwrapMultiple(error).get(0);
+    }
+    return error;
+  }
+
+  // Deletes the children before the product, so that no child is ever left without its product.
+  // The error of the create is passed on, a failed compensation is only logged.
+  // A create that timed out may still be done by the core service after the compensation has run,
+  // which would leave orphans behind. The compensation is skipped then and the product is left for
+  // the client to delete, app.<service>.write-timeout is long so that this is rare.
+  private Mono<Void> compensate(int productId, Throwable errors) {
+    Throwable error = firstError(errors);
+    if (Exceptions.unwrapMultiple(errors).stream().anyMatch(TimeoutException.class::isInstance)) {
+      LOG.error(
+          "Create of product.id: {} timed out, will not delete what was created: {}",
+          productId,
+          error.toString());
+      return Mono.error(error);
+    }
+
+    LOG.warn(
+        "Create of product.id: {} failed, will delete what was created: {}",
+        productId,
+        error.toString());
+    compensationsCounter.increment();
+
+    return Mono.whenDelayError(
+            integration.deleteRecommendations(productId), integration.deleteReviews(productId))
+        .then(integration.deleteProduct(productId))
+        .onErrorResume(
+            ex -> {
+              LOG.error(
+                  "Could not undo the create of product.id: {}: {}", productId, ex.toString());
+              return Mono.empty();
+            })
+        .then(Mono.error(error));
+  }
+
   @Override
   public Mono<ProductAggregate> getProduct(int productId) {
+    ProductAggregate cached = cache.getIfPresent(productId);
+    Mono<ProductAggregate> aggregate =
+        (cached != null)
+            ? Mono.just(cached)
+            : coalescer.execute(productId, () -> fetchProduct(productId, true, true));
+
+    return aggregate
+        .flatMap(this::conditional)
+        .doOnError(ex -> LOG.warn("product get failed: {}", ex.toString()))
+        .transform(signalLog::mono);
+  }
+
+  @Override
+  public Mono<ProductAggregate> getProductFields(int productId, List<String> fields) {
+    fields.forEach(
+        field -> {
+          if (!FIELDS.contains(field)) {
+            throw new InvalidInputException(
+                "Invalid field: " + field + ", supported are " + String.join(", ", FIELDS));
+          }
+        });
+    boolean withRecommendations = fields.contains(FIELD_RECOMMENDATIONS);
+    boolean withReviews = fields.contains(FIELD_REVIEWS);
+    if (withRecommendations && withReviews) {
+      return getProduct(productId);
+    }
+
+    // A cached full aggregate answers any selection, but a selection is never cached itself
+    ProductAggregate cached = cache.getIfPresent(productId);
+    Mono<ProductAggregate> aggregate =
+        (cached != null)
+            ? Mono.just(select(cached, withRecommendations, withReviews))
+            : fetchProduct(productId, withRecommendations, withReviews);
+
+    return aggregate
+        .flatMap(this::conditional)
+        .doOnError(ex -> LOG.warn("product fields get failed: {}", ex.toString()))
+        .transform(signalLog::mono);
+  }
+
+  private Mono<ProductAggregate> conditional(ProductAggregate aggregate) {
+    String etag =
+        (aggregate instanceof LazyProductAggregate lazy) ? lazy.etag() : etag(aggregate);
+    return ETags.conditional(aggregate, etag);
+  }
+
+  // The ETag is a digest over the content from the core services. The service addresses, and the
+  // update times of the statistics, are left out, so that all instances agree on the ETag of an
+  // aggregate. LazyProductAggregate.etag adds the same values, so both modes agree too.
+  static String etag(ProductAggregate aggregate) {
+    ETags.Digest digest =
+        ETags.digest()
+            .add(aggregate.getProductId())
+            .add(aggregate.getName())
+            .add(aggregate.getWeight());
+
+    List<RecommendationSummary> recommendations = aggregate.getRecommendations();
+    digest.add((recommendations == null) ? null : recommendations.size());
+    if (recommendations != null) {
+      for (RecommendationSummary r : recommendations) {
+        digest.add(r.getRecommendationId()).add(r.getAuthor()).add(r.getRate()).add(r.getContent());
+      }
+    }
+
+    List<ReviewSummary> reviews = aggregate.getReviews();
+    digest.add((reviews == null) ? null : reviews.size());
+    if (reviews != null) {
+      for (ReviewSummary r : reviews) {
+        digest.add(r.getReviewId()).add(r.getAuthor()).add(r.getSubject()).add(r.getContent());
+      }
+    }
+
+    return digest
+        .add(aggregate.getRecommendationsCursor())
+        .add(aggregate.getReviewsCursor())
+        .add(statsContent(aggregate.getRecommendationStats()))
+        .add(statsContent(aggregate.getReviewStats()))
+        .weak();
+  }
+
+  // The histogram is sorted, as its string form depends on the order of its entries
+  private static List<Object> statsContent(RecommendationStats stats) {
+    return (stats == null)
+        ? null
+        : Arrays.asList(
+            stats.getCount(),
+            stats.getRateSum(),
+            (stats.getRateHistogram() == null) ? null : new TreeMap<>(stats.getRateHistogram()));
+  }
+
+  private static List<Object> statsContent(ReviewStats stats) {
+    return (stats == null) ? null : List.of(stats.getCount());
+  }
+
+  private ProductAggregate select(
+      ProductAggregate full, boolean withRecommendations, boolean withReviews) {
+    ProductAggregate selection =
+        new ProductAggregate(
+            full.getProductId(),
+            full.getName(),
+            full.getWeight(),
+            withRecommendations ? full.getRecommendations() : null,
+            withReviews ? full.getReviews() : null,
+            full.getServiceAddresses());
+    selection.setRecommendationsCursor(
+        withRecommendations ? full.getRecommendationsCursor() : null);
+    selection.setReviewsCursor(withReviews ? full.getReviewsCursor() : null);
+    return selection;
+  }
+
+  // Parts that are not requested are not fetched, and are left null in the aggregate
+  private Mono<ProductAggregate> fetchProduct(
+      int productId, boolean withRecommendations, boolean withReviews) {
+    AtomicBoolean partial = new AtomicBoolean();
+    long generation = cache.generation();
+
+    // One more than the page size is requested, to know if there is a next page
     return Mono.zip(
             integration.getProduct(productId),
-            integration.getRecommendations(productId).collectList(),
-            integration.getReviews(productId).collectList())
+            withRecommendations
+                ? optional(
+                    integration.getRecommendationsPage(productId, null, pageSize + 1).collectList())
+                : Mono.just(Optional.<List<Recommendation>>empty()),
+            withReviews
+                ? optional(integration.getReviewsPage(productId, null, pageSize + 1).collectList())
+                : Mono.just(Optional.<List<Review>>empty()))
+        .map(tuple -> firstPageAggregate(tuple.getT1(), tuple.getT2(), tuple.getT3()))
+        .doOnNext(
+            aggregate -> {
+              if (withRecommendations && withReviews) {
+                cacheUnlessPartial(aggregate, partial, generation);
+              }
+            })
+        .contextWrite(Context.of(ProductCompositeIntegration.PARTIAL_RESULT, partial));
+  }
+
+  // The lists hold up to one more than the page size, sorted by id, and are cut to the first page
+  private ProductAggregate firstPageAggregate(
+      Product product,
+      Optional<List<Recommendation>> recommendations,
+      Optional<List<Review>> reviews) {
+    ProductAggregate aggregate =
+        aggregate(
+            product,
+            firstPage(recommendations.orElse(null)),
+            firstPage(reviews.orElse(null)),
+            serviceUtil.getServiceAddress());
+    aggregate.setRecommendationsCursor(
+        cursorOf(recommendations.orElse(null), Recommendation::getRecommendationId));
+    aggregate.setReviewsCursor(cursorOf(reviews.orElse(null), Review::getReviewId));
+    return aggregate;
+  }
+
+  private <T> List<T> firstPage(List<T> items) {
+    return (items != null && items.size() > pageSize) ? items.subList(0, pageSize) : items;
+  }
+
+  private <T> Integer cursorOf(List<T> items, Function<T, Integer> idOf) {
+    return (items != null && items.size() > pageSize)
+        ? idOf.apply(items.get(pageSize - 1))
+        : null;
+  }
+
+  // A partial aggregate is still returned to the caller, but must not hide the missing parts for
+  // the lifetime of the cache entry
+  private void cacheUnlessPartial(
+      ProductAggregate aggregate, AtomicBoolean partial, long generation) {
+    if (partial.get()) {
+      LOG.debug("Skips caching partial aggregate for productId: {}", aggregate.getProductId());
+    } else {
+      cache.put(aggregate.getProductId(), aggregate, generation);
+    }
+  }
+
+  // Called when a write has ended, also a load that is in flight may have read the old product
+  private void invalidate(int productId) {
+    cache.invalidate(productId);
+    coalescer.invalidate(productId);
+  }
+
+  @Override
+  public Mono<ProductAggregate> getProductSummary(int productId) {
+    // Missing statistics are left out of the response, as missing lists are in getProduct
+    return Mono.zip(
+            integration.getProduct(productId),
+            optional(integration.getRecommendationStats(productId)),
+            optional(integration.getReviewStats(productId)))
         .map(
             tuple ->
-                createProductAggregate(
-                    tuple.getT1(), tuple.getT2(), tuple.getT3(), serviceUtil.getServiceAddress()))
-        .doOnError(ex -> LOG.warn("product get failed: {}", ex.toString()))
-        .log(LOG.getName(), FINE);
+                createProductSummary(
+                    tuple.getT1(),
+                    tuple.getT2().orElse(null),
+                    tuple.getT3().orElse(null),
+                    serviceUtil.getServiceAddress()))
+        .flatMap(this::conditional)
+        .doOnError(ex -> LOG.warn("product summary get failed: {}", ex.toString()))
+        .transform(signalLog::mono);
+  }
+
+  private <T> Mono<Optional<T>> optional(Mono<T> mono) {
+    return mono.map(Optional::of).defaultIfEmpty(Optional.empty());
+  }
+
+  private ProductAggregate createProductSummary(
+      Product product,
+      RecommendationStats recommendationStats,
+      ReviewStats reviewStats,
+      String serviceAddress) {
+    ServiceAddresses serviceAddresses =
+        new ServiceAddresses(
+            serviceAddress,
+            product.getServiceAddress(),
+            (reviewStats != null) ? reviewStats.getServiceAddress() : "",
+            (recommendationStats != null) ? recommendationStats.getServiceAddress() : "");
+
+    ProductAggregate summary =
+        new ProductAggregate(
+            product.getProductId(),
+            product.getName(),
+            product.getWeight(),
+            null,
+            null,
+            serviceAddresses);
+    summary.setRecommendationStats(recommendationStats);
+    summary.setReviewStats(reviewStats);
+    return summary;
+  }
+
+  @Override
+  public Flux<ProductAggregate> getProducts(List<Integer> productIds) {
+    List<Integer> distinctIds = productIds.stream().distinct().toList();
+    if (distinctIds.isEmpty() || distinctIds.size() > maxBatchSize) {
+      throw new InvalidInputException(
+          "Invalid number of productIds: " + distinctIds.size() + ", max is " + maxBatchSize);
+    }
+
+    // Serve what we can from the cache, and fetch the rest with one call per core service
+    List<ProductAggregate> cached = new ArrayList<>(distinctIds.size());
+    List<Integer> missingIds = new ArrayList<>(distinctIds.size());
+    distinctIds.forEach(
+        productId -> {
+          ProductAggregate aggregate = cache.getIfPresent(productId);
+          if (aggregate != null) {
+            cached.add(aggregate);
+          } else {
+            missingIds.add(productId);
+          }
+        });
+    LOG.debug("getProducts: {} cached, {} to fetch", cached.size(), missingIds.size());
+
+    AtomicBoolean partial = new AtomicBoolean();
+    long generation = cache.generation();
+    Flux<ProductAggregate> fetched =
+        missingIds.isEmpty()
+            ? Flux.empty()
+            : Mono.zip(
+                    integration.getProducts(missingIds).collectList(),
+                    integration
+                        .getRecommendationsByProductIds(missingIds)
+                        .collectMultimap(Recommendation::getProductId),
+                    integration
+                        .getReviewsByProductIds(missingIds)
+                        .collectMultimap(Review::getProductId))
+                .flatMapMany(
+                    tuple ->
+                        Flux.fromIterable(tuple.getT1())
+                            .map(
+                                product ->
+                                    firstPageAggregate(
+                                        product,
+                                        childrenOf(
+                                            tuple.getT2(),
+                                            product.getProductId(),
+                                            Recommendation::getRecommendationId),
+                                        childrenOf(
+                                            tuple.getT3(),
+                                            product.getProductId(),
+                                            Review::getReviewId))))
+                .doOnNext(aggregate -> cacheUnlessPartial(aggregate, partial, generation))
+                .contextWrite(Context.of(ProductCompositeIntegration.PARTIAL_RESULT, partial));
+
+    return Flux.fromIterable(cached)
+        .concatWith(fetched)
+        .doOnError(ex -> LOG.warn("product batch get failed: {}", ex.toString()))
+        .transform(signalLog::flux);
+  }
+
+  // The batch calls return all children, they are sorted as the page calls return them, so that
+  // the aggregates and their cursors are the same as those of getProduct
+  private <T> Optional<List<T>> childrenOf(
+      Map<Integer, Collection<T>> childrenByProductId, int productId, Function<T, Integer> idOf) {
+    Collection<T> children = childrenByProductId.get(productId);
+    List<T> sorted = (children == null) ? new ArrayList<>() : new ArrayList<>(children);
+    sorted.sort(Comparator.comparing(idOf));
+    return Optional.of(sorted);
   }
 
   @Override
-  public Mono<Void> deleteProduct(int productId) {
+  public Mono<Void> deleteProduct(int productId, String idempotencyKey) {
     try {
       LOG.info("Will delete a product aggregate for product.id: {}", productId);
 
-      return Mono.zip(
-              integration.deleteProduct(productId),
-              integration.deleteRecommendations(productId),
-              integration.deleteReviews(productId))
+      return idempotentWrites
+          .execute(
+              idempotencyKey,
+              Objects.hash("deleteProduct", productId),
+              () ->
+                  Mono.when(
+                          integration.deleteProduct(productId),
+                          integration.deleteRecommendations(productId),
+                          integration.deleteReviews(productId))
+                      .doFinally(signal -> invalidate(productId)))
           .doOnError(ex -> LOG.warn("product delete failed: {}", ex.toString()))
-          .log(LOG.getName(), FINE)
-          .then();
+          .transform(signalLog::mono);
     } catch (RuntimeException re) {
       LOG.warn("deleteCompositeProduct failed: {}", re.toString());
       throw re;
     }
   }
 
-  private ProductAggregate createProductAggregate(
+  // With app.aggregate-json=direct the JSON is written straight from the core service responses by
+  // ProductAggregateJsonEncoder, and the summaries of createProductAggregate are never created
+  private ProductAggregate aggregate(
+      Product product,
+      List<Recommendation> recommendations,
+      List<Review> reviews,
+      String serviceAddress) {
+    return directJson
+        ? new LazyProductAggregate(product, recommendations, reviews, serviceAddress)
+        : createProductAggregate(product, recommendations, reviews, serviceAddress);
+  }
+
+  // Static and package-private so that the benchmarks can call it without a Spring context
+  static ProductAggregate createProductAggregate(
       Product product,
       List<Recommendation> recommendations,
       List<Review> reviews,
@@ -136,28 +599,46 @@ public class ProductCompositeServiceImpl implements ProductCompositeService {
     int weight = product.getWeight();
 
     // 2. Copy summary recommendation info, if available
-    List<RecommendationSummary> recommendationSummaries =
-        (recommendations == null)
-            ? null
-            : recommendations.stream()
-                .map(
-                    r ->
-                        new RecommendationSummary(
-                            r.getRecommendationId(), r.getAuthor(), r.getRate(), r.getContent()))
-                .collect(Collectors.toList());
+    List<RecommendationSummary> recommendationSummaries = recommendationSummaries(recommendations);
 
     // 3. Copy summary review info, if available
-    List<ReviewSummary> reviewSummaries =
-        (reviews == null)
-            ? null
-            : reviews.stream()
-                .map(
-                    r ->
-                        new ReviewSummary(
-                            r.getReviewId(), r.getAuthor(), r.getSubject(), r.getContent()))
-                .collect(Collectors.toList());
+    List<ReviewSummary> reviewSummaries = reviewSummaries(reviews);
 
     // 4. Create info regarding the involved microservices addresses
+    ServiceAddresses serviceAddresses =
+        serviceAddresses(product, recommendations, reviews, serviceAddress);
+
+    return new ProductAggregate(
+        productId, name, weight, recommendationSummaries, reviewSummaries, serviceAddresses);
+  }
+
+  static List<RecommendationSummary> recommendationSummaries(List<Recommendation> recommendations) {
+    return (recommendations == null)
+        ? null
+        : recommendations.stream()
+            .map(
+                r ->
+                    new RecommendationSummary(
+                        r.getRecommendationId(), r.getAuthor(), r.getRate(), r.getContent()))
+            .collect(Collectors.toList());
+  }
+
+  static List<ReviewSummary> reviewSummaries(List<Review> reviews) {
+    return (reviews == null)
+        ? null
+        : reviews.stream()
+            .map(
+                r ->
+                    new ReviewSummary(
+                        r.getReviewId(), r.getAuthor(), r.getSubject(), r.getContent()))
+            .collect(Collectors.toList());
+  }
+
+  static ServiceAddresses serviceAddresses(
+      Product product,
+      List<Recommendation> recommendations,
+      List<Review> reviews,
+      String serviceAddress) {
     String productAddress = product.getServiceAddress();
     String reviewAddress =
         (reviews != null && !reviews.isEmpty()) ? reviews.get(0).getServiceAddress() : "";
@@ -165,10 +646,7 @@ public class ProductCompositeServiceImpl implements ProductCompositeService {
         (recommendations != null && !recommendations.isEmpty())
             ? recommendations.get(0).getServiceAddress()
             : "";
-    ServiceAddresses serviceAddresses =
-        new ServiceAddresses(serviceAddress, productAddress, reviewAddress, recommendationAddress);
-
-    return new ProductAggregate(
-        productId, name, weight, recommendationSummaries, reviewSummaries, serviceAddresses);
+    return new ServiceAddresses(
+        serviceAddress, productAddress, reviewAddress, recommendationAddress);
   }
 }
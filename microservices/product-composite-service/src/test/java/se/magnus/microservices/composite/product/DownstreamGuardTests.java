@@ -0,0 +1,228 @@
+package se.magnus.microservices.composite.product;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+import reactor.util.retry.Retry;
+import se.magnus.api.exceptions.NotFoundException;
+import se.magnus.microservices.composite.product.services.DownstreamGuard;
+
+class DownstreamGuardTests {
+
+  private static final int FAILURE_THRESHOLD = 3;
+  private static final Duration OPEN_DURATION = Duration.ofMillis(200);
+  private static final Duration WRITE_TIMEOUT = Duration.ofMillis(500);
+
+  private MeterRegistry registry;
+
+  @BeforeEach
+  void setupRegistry() {
+    registry = new SimpleMeterRegistry();
+  }
+
+  @Test
+  void slowCallTimesOut() {
+    DownstreamGuard guard = guard(Duration.ofMillis(100), 10, false);
+
+    StepVerifier.create(guard.flux(Flux.never())).expectError(TimeoutException.class).verify();
+
+    assertEquals(1, counter("timeouts"));
+  }
+
+  @Test
+  void writeUsesTheWriteTimeout() {
+    DownstreamGuard guard = guard(Duration.ofMillis(100), 10, false);
+
+    StepVerifier.create(guard.writeMono(Mono.delay(Duration.ofMillis(300)).thenReturn("created")))
+        .expectNext("created")
+        .verifyComplete();
+    StepVerifier.create(guard.writeFlux(Flux.never()))
+        .expectError(TimeoutException.class)
+        .verify(Duration.ofSeconds(5));
+  }
+
+  @Test
+  void bulkheadRejectsCallsAboveTheLimit() {
+    DownstreamGuard guard = guard(Duration.ofSeconds(5), 1, false);
+
+    Disposable first = guard.mono(Mono.never()).subscribe();
+
+    StepVerifier.create(guard.mono(Mono.just("second")))
+        .expectError(RejectedExecutionException.class)
+        .verify();
+    assertEquals(1, counter("rejected"));
+
+    first.dispose();
+
+    StepVerifier.create(guard.mono(Mono.just("third"))).expectNext("third").verifyComplete();
+  }
+
+  @Test
+  void slowCallIsHedged() {
+    DownstreamGuard guard = guard(Duration.ofSeconds(5), 10, true);
+
+    AtomicInteger attempts = new AtomicInteger();
+    Mono<String> call =
+        Mono.defer(
+            () ->
+                (attempts.incrementAndGet() == 1)
+                    ? Mono.delay(Duration.ofSeconds(3)).thenReturn("first")
+                    : Mono.just("hedge"));
+
+    StepVerifier.create(guard.hedgedMono(call)).expectNext("hedge").verifyComplete();
+
+    assertEquals(2, attempts.get());
+    assertEquals(1, counter("hedged"));
+  }
+
+  @Test
+  void fastCallIsNotHedged() {
+    DownstreamGuard guard = guard(Duration.ofSeconds(5), 10, true);
+
+    AtomicInteger attempts = new AtomicInteger();
+    Mono<String> call = Mono.fromSupplier(() -> "attempt-" + attempts.incrementAndGet());
+
+    StepVerifier.create(guard.hedgedMono(call)).expectNext("attempt-1").verifyComplete();
+
+    assertEquals(1, attempts.get());
+    assertEquals(0, counter("hedged"));
+  }
+
+  @Test
+  void circuitBreakerOpensAfterConsecutiveFailuresAndClosesAfterATrialCall()
+      throws InterruptedException {
+    DownstreamGuard guard = guard(Duration.ofSeconds(5), 10, false);
+
+    AtomicInteger attempts = new AtomicInteger();
+    Mono<String> failing =
+        Mono.defer(
+            () -> {
+              attempts.incrementAndGet();
+              return Mono.error(new IOException("Connection refused"));
+            });
+
+    for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+      StepVerifier.create(guard.mono(failing)).expectError(IOException.class).verify();
+    }
+    StepVerifier.create(guard.mono(failing))
+        .expectError(RejectedExecutionException.class)
+        .verify();
+    assertEquals(FAILURE_THRESHOLD, attempts.get());
+    assertEquals(1, counter("short-circuited"));
+    assertEquals(1, circuitBreakerState());
+
+    Thread.sleep(OPEN_DURATION.toMillis() + 50);
+
+    StepVerifier.create(guard.mono(Mono.just("trial"))).expectNext("trial").verifyComplete();
+    assertEquals(0, circuitBreakerState());
+    StepVerifier.create(guard.mono(Mono.just("next"))).expectNext("next").verifyComplete();
+  }
+
+  @Test
+  void bulkheadRejectionsNeitherCloseNorResetTheCircuitBreaker() throws InterruptedException {
+    DownstreamGuard guard = guard(Duration.ofSeconds(5), 1, false);
+    Mono<String> failing = Mono.error(new IOException("Connection refused"));
+
+    for (int i = 0; i < FAILURE_THRESHOLD - 1; i++) {
+      StepVerifier.create(guard.mono(failing)).expectError(IOException.class).verify();
+    }
+    Disposable inFlight = guard.mono(Mono.never()).subscribe();
+    StepVerifier.create(guard.mono(Mono.just("rejected")))
+        .expectError(RejectedExecutionException.class)
+        .verify();
+    inFlight.dispose();
+
+    // The failure that opens the breaker holds the only bulkhead permit until it is handled
+    CountDownLatch failed = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    guard
+        .mono(failing.subscribeOn(Schedulers.boundedElastic()))
+        .subscribe(
+            null,
+            error -> {
+              failed.countDown();
+              awaitQuietly(release);
+            });
+    assertTrue(failed.await(5, SECONDS));
+    assertEquals(1, circuitBreakerState());
+
+    // The trial call is rejected by the bulkhead, the breaker stays half open
+    Thread.sleep(OPEN_DURATION.toMillis() + 50);
+    StepVerifier.create(guard.mono(Mono.just("trial")))
+        .expectError(RejectedExecutionException.class)
+        .verify();
+    assertEquals(2, circuitBreakerState());
+    release.countDown();
+
+    // The rejected call gave the trial permit back, so the next call is the trial
+    StepVerifier.create(guard.mono(Mono.just("next")).retryWhen(bulkheadReleased()))
+        .expectNext("next")
+        .verifyComplete();
+    assertEquals(0, circuitBreakerState());
+  }
+
+  @Test
+  void notFoundDoesNotOpenTheCircuitBreaker() {
+    DownstreamGuard guard = guard(Duration.ofSeconds(5), 10, false);
+
+    Mono<String> notFound = Mono.error(new NotFoundException("No product found"));
+    for (int i = 0; i < FAILURE_THRESHOLD * 2; i++) {
+      StepVerifier.create(guard.mono(notFound)).expectError(NotFoundException.class).verify();
+    }
+
+    assertEquals(0, counter("short-circuited"));
+    assertEquals(0, circuitBreakerState());
+  }
+
+  private DownstreamGuard guard(Duration timeout, int maxConcurrentCalls, boolean hedge) {
+    return new DownstreamGuard(
+        "test-service",
+        timeout,
+        WRITE_TIMEOUT,
+        maxConcurrentCalls,
+        hedge,
+        Duration.ofMillis(50),
+        true,
+        FAILURE_THRESHOLD,
+        OPEN_DURATION,
+        registry);
+  }
+
+  // The permit is released right after the error has been handled, on another thread
+  private static Retry bulkheadReleased() {
+    return Retry.fixedDelay(10, Duration.ofMillis(10))
+        .filter(error -> error.getMessage().startsWith("Too many concurrent calls"));
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await(5, SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private double circuitBreakerState() {
+    return registry.get("product.composite.downstream.circuit-breaker.state").gauge().value();
+  }
+
+  private double counter(String name) {
+    return registry.get("product.composite.downstream." + name).counter().count();
+  }
+}
@@ -1,13 +1,28 @@
 package se.magnus.microservices.composite.product;
 
 import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.http.HttpStatus.*;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
 import static reactor.core.publisher.Mono.just;
 
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.IntStream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
@@ -16,8 +31,10 @@ import org.springframework.test.web.reactive.server.WebTestClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import se.magnus.api.composite.product.ProductAggregate;
+import se.magnus.api.composite.product.ReviewSummary;
 import se.magnus.api.core.product.Product;
 import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.api.core.recommendation.RecommendationStats;
 import se.magnus.api.core.review.Review;
 import se.magnus.api.exceptions.InvalidInputException;
 import se.magnus.api.exceptions.NotFoundException;
@@ -29,6 +46,13 @@ class ProductCompositeServiceApplicationTests {
   private static final int PRODUCT_ID_OK = 1;
   private static final int PRODUCT_ID_NOT_FOUND = 2;
   private static final int PRODUCT_ID_INVALID = 3;
+  private static final int PRODUCT_ID_CACHED = 4;
+  private static final int PRODUCT_ID_MANY_REVIEWS = 5;
+  private static final int PRODUCT_ID_CREATED = 6;
+  private static final int PRODUCT_ID_IDEMPOTENT = 7;
+  private static final int PRODUCT_ID_COMPENSATED = 8;
+  private static final int PRODUCT_ID_TIMED_OUT = 9;
+  private static final int PRODUCT_ID_BATCH = 10;
 
   @Autowired private WebTestClient client;
 
@@ -38,12 +62,12 @@ class ProductCompositeServiceApplicationTests {
   void setUp() {
     when(compositeIntegration.getProduct(PRODUCT_ID_OK))
         .thenReturn(Mono.just(new Product(PRODUCT_ID_OK, "name", 1, "mock-address")));
-    when(compositeIntegration.getRecommendations(PRODUCT_ID_OK))
+    when(compositeIntegration.getRecommendationsPage(eq(PRODUCT_ID_OK), isNull(), anyInt()))
         .thenReturn(
             Flux.fromIterable(
                 singletonList(
                     new Recommendation(PRODUCT_ID_OK, 1, "author", 1, "content", "mock address"))));
-    when(compositeIntegration.getReviews(PRODUCT_ID_OK))
+    when(compositeIntegration.getReviewsPage(eq(PRODUCT_ID_OK), isNull(), anyInt()))
         .thenReturn(
             Flux.fromIterable(
                 singletonList(
@@ -70,6 +94,32 @@ class ProductCompositeServiceApplicationTests {
         .isEqualTo(1);
   }
 
+  @Test
+  void getProductNotModified() {
+    String etag =
+        client
+            .get()
+            .uri("/product-composite/" + PRODUCT_ID_OK)
+            .accept(APPLICATION_JSON)
+            .exchange()
+            .expectStatus()
+            .isEqualTo(OK)
+            .returnResult(ProductAggregate.class)
+            .getResponseHeaders()
+            .getETag();
+
+    client
+        .get()
+        .uri("/product-composite/" + PRODUCT_ID_OK)
+        .accept(APPLICATION_JSON)
+        .ifNoneMatch(etag)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(NOT_MODIFIED)
+        .expectBody()
+        .isEmpty();
+  }
+
   @Test
   void getProductNotFound() {
     getAndVerifyProduct(PRODUCT_ID_NOT_FOUND, NOT_FOUND)
@@ -89,6 +139,317 @@ class ProductCompositeServiceApplicationTests {
         .isEqualTo("INVALID: " + PRODUCT_ID_INVALID);
   }
 
+  @Test
+  void getProductIsCachedUntilDeleted() {
+    when(compositeIntegration.getProduct(PRODUCT_ID_CACHED))
+        .thenReturn(Mono.just(new Product(PRODUCT_ID_CACHED, "name", 1, "mock-address")));
+    when(compositeIntegration.getRecommendationsPage(eq(PRODUCT_ID_CACHED), isNull(), anyInt()))
+        .thenReturn(Flux.empty());
+    when(compositeIntegration.getReviewsPage(eq(PRODUCT_ID_CACHED), isNull(), anyInt()))
+        .thenReturn(Flux.empty());
+    when(compositeIntegration.deleteProduct(PRODUCT_ID_CACHED)).thenReturn(Mono.empty());
+    when(compositeIntegration.deleteRecommendations(PRODUCT_ID_CACHED)).thenReturn(Mono.empty());
+    when(compositeIntegration.deleteReviews(PRODUCT_ID_CACHED)).thenReturn(Mono.empty());
+
+    getAndVerifyProduct(PRODUCT_ID_CACHED, OK).jsonPath("$.productId").isEqualTo(PRODUCT_ID_CACHED);
+    getAndVerifyProduct(PRODUCT_ID_CACHED, OK).jsonPath("$.productId").isEqualTo(PRODUCT_ID_CACHED);
+    verify(compositeIntegration, times(1)).getProduct(PRODUCT_ID_CACHED);
+
+    deleteAndVerifyProduct(PRODUCT_ID_CACHED, OK);
+
+    getAndVerifyProduct(PRODUCT_ID_CACHED, OK).jsonPath("$.productId").isEqualTo(PRODUCT_ID_CACHED);
+    verify(compositeIntegration, times(2)).getProduct(PRODUCT_ID_CACHED);
+  }
+
+  @Test
+  void getProductWithMoreReviewsThanOnePage() {
+    when(compositeIntegration.getProduct(PRODUCT_ID_MANY_REVIEWS))
+        .thenReturn(Mono.just(new Product(PRODUCT_ID_MANY_REVIEWS, "name", 1, "mock-address")));
+    when(compositeIntegration.getRecommendationsPage(
+            eq(PRODUCT_ID_MANY_REVIEWS), isNull(), anyInt()))
+        .thenReturn(Flux.empty());
+    when(compositeIntegration.getReviewsPage(eq(PRODUCT_ID_MANY_REVIEWS), isNull(), eq(101)))
+        .thenReturn(
+            Flux.fromStream(
+                IntStream.rangeClosed(1, 101)
+                    .mapToObj(id -> new Review(PRODUCT_ID_MANY_REVIEWS, id, "a", "s", "c", "sa"))));
+
+    getAndVerifyProduct(PRODUCT_ID_MANY_REVIEWS, OK)
+        .jsonPath("$.reviews.length()")
+        .isEqualTo(100)
+        .jsonPath("$.reviewsCursor")
+        .isEqualTo(100)
+        .jsonPath("$.recommendations.length()")
+        .isEqualTo(0)
+        .jsonPath("$.recommendationsCursor")
+        .doesNotExist();
+  }
+
+  @Test
+  void getProductSummaryETagIsTheSameOnAllReplicas() {
+    when(compositeIntegration.getRecommendationStats(PRODUCT_ID_OK))
+        .thenReturn(
+            Mono.just(
+                new RecommendationStats(
+                    PRODUCT_ID_OK, 2, 7, Map.of(3, 1L, 4, 1L), Instant.EPOCH, "replica 1")));
+    when(compositeIntegration.getReviewStats(PRODUCT_ID_OK)).thenReturn(Mono.empty());
+    String etag = getProductSummaryETag();
+
+    when(compositeIntegration.getRecommendationStats(PRODUCT_ID_OK))
+        .thenReturn(
+            Mono.just(
+                new RecommendationStats(
+                    PRODUCT_ID_OK, 2, 7, Map.of(3, 1L, 4, 1L), Instant.now(), "replica 2")));
+    assertEquals(etag, getProductSummaryETag());
+  }
+
+  @Test
+  void getProductSummary() {
+    when(compositeIntegration.getRecommendationStats(PRODUCT_ID_OK))
+        .thenReturn(
+            Mono.just(
+                new RecommendationStats(
+                    PRODUCT_ID_OK, 2, 7, Map.of(3, 1L, 4, 1L), null, "mock address")));
+    when(compositeIntegration.getReviewStats(PRODUCT_ID_OK)).thenReturn(Mono.empty());
+
+    client
+        .get()
+        .uri("/product-composite/" + PRODUCT_ID_OK + "?summaryOnly=true")
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(OK)
+        .expectBody()
+        .jsonPath("$.productId")
+        .isEqualTo(PRODUCT_ID_OK)
+        .jsonPath("$.recommendations")
+        .doesNotExist()
+        .jsonPath("$.recommendationStats.count")
+        .isEqualTo(2)
+        .jsonPath("$.recommendationStats.averageRate")
+        .isEqualTo(3.5)
+        .jsonPath("$.reviewStats")
+        .doesNotExist();
+
+    verify(compositeIntegration, times(0)).getRecommendationsPage(anyInt(), isNull(), anyInt());
+  }
+
+  @Test
+  void getProductWithSelectedFields() {
+    client
+        .get()
+        .uri("/product-composite/" + PRODUCT_ID_OK + "?fields=product,reviews")
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(OK)
+        .expectBody()
+        .jsonPath("$.productId")
+        .isEqualTo(PRODUCT_ID_OK)
+        .jsonPath("$.reviews.length()")
+        .isEqualTo(1)
+        .jsonPath("$.recommendations")
+        .doesNotExist();
+
+    verify(compositeIntegration, times(0)).getRecommendationsPage(anyInt(), isNull(), anyInt());
+  }
+
+  @Test
+  void getProductWithInvalidField() {
+    client
+        .get()
+        .uri("/product-composite/" + PRODUCT_ID_OK + "?fields=product,ratings")
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(UNPROCESSABLE_ENTITY)
+        .expectBody()
+        .jsonPath("$.message")
+        .isEqualTo("Invalid field: ratings, supported are product, recommendations, reviews");
+  }
+
+  @Test
+  void getProductsByIds() {
+    when(compositeIntegration.getProducts(anyList()))
+        .thenReturn(
+            Flux.just(
+                new Product(5, "name 5", 1, "mock-address"),
+                new Product(6, "name 6", 1, "mock-address")));
+    when(compositeIntegration.getRecommendationsByProductIds(anyList()))
+        .thenReturn(Flux.just(new Recommendation(6, 1, "author", 1, "content", "mock address")));
+    when(compositeIntegration.getReviewsByProductIds(anyList()))
+        .thenReturn(
+            Flux.just(
+                new Review(5, 1, "author", "subject", "content", "mock address"),
+                new Review(6, 1, "author", "subject", "content", "mock address")));
+
+    client
+        .get()
+        .uri("/product-composite?ids=5,6,7")
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(OK)
+        .expectBody()
+        .jsonPath("$.length()")
+        .isEqualTo(2)
+        .jsonPath("$[0].productId")
+        .isEqualTo(5)
+        .jsonPath("$[0].recommendations.length()")
+        .isEqualTo(0)
+        .jsonPath("$[0].reviews.length()")
+        .isEqualTo(1)
+        .jsonPath("$[1].recommendations.length()")
+        .isEqualTo(1);
+  }
+
+  @Test
+  void getProductsByIdsCachesTheFirstPageOfTheAggregate() {
+    when(compositeIntegration.getProducts(anyList()))
+        .thenReturn(Flux.just(new Product(PRODUCT_ID_BATCH, "name", 1, "mock-address")));
+    when(compositeIntegration.getRecommendationsByProductIds(anyList())).thenReturn(Flux.empty());
+    // The batch call returns all reviews, in any order
+    when(compositeIntegration.getReviewsByProductIds(anyList()))
+        .thenReturn(
+            Flux.fromStream(
+                IntStream.iterate(150, id -> id >= 1, id -> id - 1)
+                    .mapToObj(id -> new Review(PRODUCT_ID_BATCH, id, "a", "s", "c", "sa"))));
+
+    client
+        .get()
+        .uri("/product-composite?ids=" + PRODUCT_ID_BATCH)
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(OK)
+        .expectBody()
+        .jsonPath("$[0].reviews.length()")
+        .isEqualTo(100)
+        .jsonPath("$[0].reviews[0].reviewId")
+        .isEqualTo(1)
+        .jsonPath("$[0].reviewsCursor")
+        .isEqualTo(100);
+
+    // Served from the cache, paginated as if loaded by getProduct
+    getAndVerifyProduct(PRODUCT_ID_BATCH, OK)
+        .jsonPath("$.reviews.length()")
+        .isEqualTo(100)
+        .jsonPath("$.reviews[99].reviewId")
+        .isEqualTo(100)
+        .jsonPath("$.reviewsCursor")
+        .isEqualTo(100)
+        .jsonPath("$.recommendationsCursor")
+        .doesNotExist();
+    verify(compositeIntegration, never()).getProduct(PRODUCT_ID_BATCH);
+  }
+
+  @Test
+  void createProductSendsReviewsInChunks() {
+    when(compositeIntegration.createProduct(any()))
+        .thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+    when(compositeIntegration.createReviews(anyList()))
+        .thenAnswer(invocation -> Flux.fromIterable(invocation.<List<Review>>getArgument(0)));
+
+    List<ReviewSummary> reviews =
+        IntStream.rangeClosed(1, 250)
+            .mapToObj(reviewId -> new ReviewSummary(reviewId, "author", "subject", "content"))
+            .toList();
+    postAndVerifyProduct(
+        new ProductAggregate(PRODUCT_ID_CREATED, "name", 1, null, reviews, null), OK);
+
+    // app.child-create.chunk-size is 100
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<List<Review>> chunks = ArgumentCaptor.forClass(List.class);
+    verify(compositeIntegration, times(3)).createReviews(chunks.capture());
+    assertEquals(List.of(100, 100, 50), chunks.getAllValues().stream().map(List::size).toList());
+    verify(compositeIntegration, times(1)).createProduct(any());
+    verify(compositeIntegration, never()).createRecommendations(anyList());
+  }
+
+  @Test
+  void createProductWithIdempotencyKeyIsOnlyDoneOnce() {
+    when(compositeIntegration.createProduct(any()))
+        .thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+    ProductAggregate aggregate =
+        new ProductAggregate(PRODUCT_ID_IDEMPOTENT, "name", 1, null, null, null);
+
+    postAndVerifyProduct(aggregate, "create-7", OK);
+    postAndVerifyProduct(aggregate, "create-7", OK);
+    verify(compositeIntegration, times(1)).createProduct(any());
+
+    // A key can't be reused for another request
+    ProductAggregate other =
+        new ProductAggregate(PRODUCT_ID_IDEMPOTENT, "other", 1, null, null, null);
+    postAndVerifyProduct(other, "create-7", UNPROCESSABLE_ENTITY);
+    verify(compositeIntegration, times(1)).createProduct(any());
+  }
+
+  @Test
+  void failedCreateProductIsCompensated() {
+    when(compositeIntegration.createProduct(any()))
+        .thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+    when(compositeIntegration.createReviews(anyList()))
+        .thenReturn(Flux.error(new InvalidInputException("Duplicate key, reviewId: 1")));
+    when(compositeIntegration.deleteProduct(PRODUCT_ID_COMPENSATED)).thenReturn(Mono.empty());
+    when(compositeIntegration.deleteRecommendations(PRODUCT_ID_COMPENSATED))
+        .thenReturn(Mono.empty());
+    when(compositeIntegration.deleteReviews(PRODUCT_ID_COMPENSATED)).thenReturn(Mono.empty());
+
+    ProductAggregate aggregate =
+        new ProductAggregate(
+            PRODUCT_ID_COMPENSATED,
+            "name",
+            1,
+            null,
+            List.of(new ReviewSummary(1, "author", "subject", "content")),
+            null);
+    postAndVerifyProduct(aggregate, "create-8", UNPROCESSABLE_ENTITY);
+
+    verify(compositeIntegration, times(1)).deleteReviews(PRODUCT_ID_COMPENSATED);
+    verify(compositeIntegration, times(1)).deleteRecommendations(PRODUCT_ID_COMPENSATED);
+    verify(compositeIntegration, times(1)).deleteProduct(PRODUCT_ID_COMPENSATED);
+
+    // The key of a failed create is dropped, so the retry is done again
+    postAndVerifyProduct(aggregate, "create-8", UNPROCESSABLE_ENTITY);
+    verify(compositeIntegration, times(2)).createProduct(any());
+  }
+
+  @Test
+  void timedOutCreateProductIsNotCompensated() {
+    when(compositeIntegration.createProduct(any()))
+        .thenAnswer(invocation -> Mono.just(invocation.getArgument(0)));
+    when(compositeIntegration.createReviews(anyList()))
+        .thenReturn(Flux.error(new TimeoutException("Did not observe any item")));
+
+    ProductAggregate aggregate =
+        new ProductAggregate(
+            PRODUCT_ID_TIMED_OUT,
+            "name",
+            1,
+            null,
+            List.of(new ReviewSummary(1, "author", "subject", "content")),
+            null);
+    postAndVerifyProduct(aggregate, INTERNAL_SERVER_ERROR);
+
+    // The timed out create may still be done, so nothing is deleted
+    verify(compositeIntegration, never()).deleteReviews(PRODUCT_ID_TIMED_OUT);
+    verify(compositeIntegration, never()).deleteRecommendations(PRODUCT_ID_TIMED_OUT);
+    verify(compositeIntegration, never()).deleteProduct(PRODUCT_ID_TIMED_OUT);
+  }
+
+  private String getProductSummaryETag() {
+    return client
+        .get()
+        .uri("/product-composite/" + PRODUCT_ID_OK + "?summaryOnly=true")
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(OK)
+        .returnResult(ProductAggregate.class)
+        .getResponseHeaders()
+        .getETag();
+  }
+
   private WebTestClient.BodyContentSpec getAndVerifyProduct(
       int productId, HttpStatus expectedStatus) {
     return client
@@ -113,6 +474,18 @@ class ProductCompositeServiceApplicationTests {
         .isEqualTo(expectedStatus);
   }
 
+  private void postAndVerifyProduct(
+      ProductAggregate compositeProduct, String idempotencyKey, HttpStatus expectedStatus) {
+    client
+        .post()
+        .uri("/product-composite")
+        .header("Idempotency-Key", idempotencyKey)
+        .body(just(compositeProduct), ProductAggregate.class)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(expectedStatus);
+  }
+
   private void deleteAndVerifyProduct(int productId, HttpStatus expectedStatus) {
     client
         .delete()
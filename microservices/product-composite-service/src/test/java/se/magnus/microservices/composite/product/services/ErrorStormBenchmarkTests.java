@@ -0,0 +1,215 @@
+package se.magnus.microservices.composite.product.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.http.HttpHeaders.CONTENT_TYPE;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.convert.ApplicationConversionService;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.HttpResources;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.resources.LoopResources;
+import se.magnus.api.exceptions.NotFoundException;
+
+/**
+ * Load test of the error handling of ProductCompositeIntegration. The scheduling delay of the
+ * client's event loops is probed while a fake product service first answers every call with a
+ * product, as a baseline, and then with an error, half of them with a 1 MB body.
+ *
+ * <p>Run with "./gradlew :microservices:product-composite-service:benchmark" and compare the logged
+ * results.
+ */
+@Tag("benchmark")
+class ErrorStormBenchmarkTests {
+  private static final Logger LOG = LoggerFactory.getLogger(ErrorStormBenchmarkTests.class);
+
+  private static final int CALLS = 4000;
+  private static final int CONCURRENCY = 200;
+
+  // The errors may slow the event loops down by this factor, plus some slack for a fast baseline
+  private static final int MAX_SLOWDOWN = 3;
+  private static final Duration SLACK = Duration.ofMillis(20);
+
+  private DisposableServer productService;
+  private volatile boolean failing;
+  private ProductCompositeIntegration integration;
+
+  @BeforeEach
+  void setUp() {
+    byte[] product =
+        "{\"productId\":1,\"name\":\"name\",\"weight\":1}".getBytes(StandardCharsets.UTF_8);
+    byte[] notFound = "{\"message\":\"No product found\"}".getBytes(StandardCharsets.UTF_8);
+    byte[] hugeError = new byte[1024 * 1024];
+    Arrays.fill(hugeError, (byte) 'x');
+
+    productService =
+        HttpServer.create()
+            .port(0)
+            .route(
+                routes ->
+                    routes.get(
+                        "/product/{productId}",
+                        (request, response) ->
+                            !failing
+                                ? response
+                                    .status(200)
+                                    .header(CONTENT_TYPE, "application/json")
+                                    .sendByteArray(Mono.just(product))
+                                : (Integer.parseInt(request.param("productId")) % 2 == 0)
+                                    ? response
+                                        .status(404)
+                                        .header(CONTENT_TYPE, "application/json")
+                                        .sendByteArray(Mono.just(notFound))
+                                    : response
+                                        .status(500)
+                                        .header(CONTENT_TYPE, "application/json")
+                                        .sendByteArray(Mono.just(hugeError))))
+            .bindNow();
+
+    int port = productService.port();
+    MockEnvironment env =
+        new MockEnvironment()
+            .withProperty("app.product-service.timeout", "10s")
+            .withProperty("app.product-service.max-concurrent-calls", String.valueOf(CONCURRENCY))
+            .withProperty("app.product-service.circuit-breaker.enabled", "false");
+    env.setConversionService(new ApplicationConversionService());
+    integration =
+        new ProductCompositeIntegration(
+            WebClient.builder(),
+            new RestTemplate(),
+            env,
+            new SimpleMeterRegistry(),
+            new LastKnownGoodCache(new SimpleMeterRegistry(), true, 1000, Duration.ofHours(1)),
+            "localhost",
+            port,
+            "localhost",
+            port,
+            "localhost",
+            port,
+            false,
+            "json",
+            DataSize.ofKilobytes(16),
+            Duration.ofSeconds(1));
+  }
+
+  @AfterEach
+  void tearDown() {
+    productService.disposeNow();
+  }
+
+  @Test
+  void eventLoopLatencyStaysFlatDuringErrorStorm() throws InterruptedException {
+    // Warm up JIT and connection pool, then measure without and with errors
+    Delayed<Long> warmUp = probeEventLoops(this::successfulCalls);
+    Delayed<Long> baseline = probeEventLoops(this::successfulCalls);
+
+    failing = true;
+    Delayed<List<Throwable>> storm = probeEventLoops(this::failingCalls);
+
+    LOG.info(
+        "p99 event loop delay: {} warm-up, {} baseline, {} error storm",
+        warmUp.p99(),
+        baseline.p99(),
+        storm.p99());
+    assertEquals(CALLS, baseline.result());
+    Duration maxDelay = baseline.p99().multipliedBy(MAX_SLOWDOWN).plus(SLACK);
+    assertTrue(
+        storm.p99().compareTo(maxDelay) < 0,
+        "p99 event loop delay " + storm.p99() + " is above " + maxDelay);
+
+    List<Throwable> errors = storm.result();
+    assertEquals(CALLS, errors.size());
+    assertEquals(
+        CALLS / 2,
+        errors.stream()
+            .filter(NotFoundException.class::isInstance)
+            .filter(ex -> "No product found".equals(ex.getMessage()))
+            .count());
+    assertEquals(
+        CALLS / 2,
+        errors.stream()
+            .filter(WebClientResponseException.InternalServerError.class::isInstance)
+            .count());
+  }
+
+  private Long successfulCalls() {
+    return Flux.range(1, CALLS)
+        .flatMap(integration::getProduct, CONCURRENCY)
+        .count()
+        .block(Duration.ofMinutes(1));
+  }
+
+  private List<Throwable> failingCalls() {
+    return Flux.range(1, CALLS)
+        .flatMap(
+            productId ->
+                integration
+                    .getProduct(productId)
+                    .<Throwable>map(product -> new AssertionError("No error"))
+                    .onErrorResume(Mono::just),
+            CONCURRENCY)
+        .collectList()
+        .block(Duration.ofMinutes(1));
+  }
+
+  private record Delayed<T>(T result, Duration p99) {}
+
+  // Runs the load while a task is submitted to every event loop each millisecond, and returns the
+  // 99th percentile of the delay until the tasks run
+  private <T> Delayed<T> probeEventLoops(Supplier<T> load) throws InterruptedException {
+    EventLoopGroup eventLoops = HttpResources.get().onClient(LoopResources.DEFAULT_NATIVE);
+    List<Long> delays = Collections.synchronizedList(new ArrayList<>());
+    ScheduledExecutorService prober = Executors.newSingleThreadScheduledExecutor();
+    prober.scheduleAtFixedRate(
+        () -> {
+          for (EventExecutor eventLoop : eventLoops) {
+            long submitted = System.nanoTime();
+            eventLoop.execute(() -> delays.add(System.nanoTime() - submitted));
+          }
+        },
+        0,
+        1,
+        TimeUnit.MILLISECONDS);
+
+    T result;
+    try {
+      result = load.get();
+    } finally {
+      prober.shutdown();
+      prober.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    List<Long> sorted;
+    synchronized (delays) {
+      sorted = new ArrayList<>(delays);
+    }
+    Collections.sort(sorted);
+    return new Delayed<>(result, Duration.ofNanos(sorted.get((int) (sorted.size() * 0.99))));
+  }
+}
@@ -0,0 +1,108 @@
+package se.magnus.microservices.composite.product.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+import reactor.util.context.Context;
+
+class IdempotentWritesTests {
+
+  private static final String KEY = "create-1";
+  private static final int FINGERPRINT = 1;
+  private static final String TRACEPARENT = "traceparent";
+
+  private MeterRegistry registry;
+  private IdempotentWrites writes;
+
+  private final AtomicInteger calls = new AtomicInteger();
+
+  @BeforeEach
+  void setUp() {
+    registry = new SimpleMeterRegistry();
+    writes = new IdempotentWrites(registry, 1000, Duration.ofHours(1));
+  }
+
+  @Test
+  void writeOfACancelledRequestRunsToCompletionAndKeepsItsKey() {
+    Sinks.Empty<Void> response = Sinks.empty();
+    writes.execute(KEY, FINGERPRINT, () -> write(response)).subscribe().dispose();
+
+    response.tryEmitEmpty();
+
+    StepVerifier.create(writes.execute(KEY, FINGERPRINT, () -> write(Sinks.empty())))
+        .verifyComplete();
+    assertEquals(1, calls.get());
+    assertEquals(1, registry.get("product.composite.idempotent.replayed").counter().count());
+  }
+
+  @Test
+  void failedWriteOfACancelledRequestDropsItsKey() {
+    Sinks.Empty<Void> response = Sinks.empty();
+    writes.execute(KEY, FINGERPRINT, () -> write(response)).subscribe().dispose();
+
+    // The key is kept while the write is still in flight
+    StepVerifier.create(writes.execute(KEY, FINGERPRINT, () -> write(Sinks.empty())))
+        .thenCancel()
+        .verify();
+    assertEquals(1, calls.get());
+
+    response.tryEmitError(new IOException("Connection reset"));
+
+    StepVerifier.create(
+            writes.execute(KEY, FINGERPRINT, () -> Mono.fromRunnable(calls::incrementAndGet)))
+        .verifyComplete();
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  void writeWithoutAKeyIsNotCancelledWithTheRequest() {
+    Sinks.Empty<Void> response = Sinks.empty();
+    AtomicInteger cancelled = new AtomicInteger();
+    writes
+        .execute(
+            null, FINGERPRINT, () -> write(response).doOnCancel(cancelled::incrementAndGet))
+        .subscribe()
+        .dispose();
+
+    assertEquals(1, calls.get());
+    assertEquals(0, cancelled.get());
+  }
+
+  @Test
+  void writeHasTheContextOfTheRequest() {
+    AtomicReference<String> traceparent = new AtomicReference<>();
+    Supplier<Mono<Void>> write =
+        () ->
+            Mono.deferContextual(
+                context -> {
+                  traceparent.set(context.getOrDefault(TRACEPARENT, null));
+                  return Mono.empty();
+                });
+
+    StepVerifier.create(
+            writes.execute(KEY, FINGERPRINT, write).contextWrite(Context.of(TRACEPARENT, "1")))
+        .verifyComplete();
+    assertEquals("1", traceparent.get());
+
+    StepVerifier.create(
+            writes.execute(null, FINGERPRINT, write).contextWrite(Context.of(TRACEPARENT, "2")))
+        .verifyComplete();
+    assertEquals("2", traceparent.get());
+  }
+
+  private Mono<Void> write(Sinks.Empty<Void> response) {
+    calls.incrementAndGet();
+    return response.asMono();
+  }
+}
@@ -0,0 +1,132 @@
+package se.magnus.microservices.composite.product.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.http.HttpHeaders.CONTENT_TYPE;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.convert.ApplicationConversionService;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.util.context.Context;
+import se.magnus.api.core.recommendation.Recommendation;
+
+/**
+ * Verifies that the last known good recommendations are returned while the recommendation service
+ * is down, and that no calls are made to it once its circuit breaker is open.
+ */
+class LastKnownGoodFallbackTests {
+
+  private static final int FAILURE_THRESHOLD = 3;
+
+  private final AtomicBoolean serviceUp = new AtomicBoolean(true);
+  private final AtomicInteger requests = new AtomicInteger();
+
+  private DisposableServer recommendationService;
+  private ProductCompositeIntegration integration;
+
+  @BeforeEach
+  void setUp() {
+    byte[] recommendations =
+        ("{\"productId\":1,\"recommendationId\":1,\"author\":\"a\",\"rate\":1}\n"
+                + "{\"productId\":1,\"recommendationId\":2,\"author\":\"a\",\"rate\":2}\n")
+            .getBytes(StandardCharsets.UTF_8);
+
+    recommendationService =
+        HttpServer.create()
+            .port(0)
+            .route(
+                routes ->
+                    routes.get(
+                        "/recommendation",
+                        (request, response) -> {
+                          requests.incrementAndGet();
+                          return serviceUp.get()
+                              ? response
+                                  .header(CONTENT_TYPE, "application/x-ndjson")
+                                  .sendByteArray(Mono.just(recommendations))
+                              : response.status(503).send();
+                        }))
+            .bindNow();
+
+    int port = recommendationService.port();
+    MockEnvironment env =
+        new MockEnvironment()
+            .withProperty(
+                "app.recommendation-service.circuit-breaker.failure-threshold",
+                String.valueOf(FAILURE_THRESHOLD))
+            .withProperty("app.recommendation-service.circuit-breaker.open-duration", "1m");
+    env.setConversionService(new ApplicationConversionService());
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    integration =
+        new ProductCompositeIntegration(
+            WebClient.builder(),
+            new RestTemplate(),
+            env,
+            registry,
+            new LastKnownGoodCache(registry, true, 1000, Duration.ofHours(1)),
+            "localhost",
+            port,
+            "localhost",
+            port,
+            "localhost",
+            port,
+            false,
+            "json",
+            DataSize.ofKilobytes(16),
+            Duration.ofSeconds(1));
+  }
+
+  @AfterEach
+  void tearDown() {
+    recommendationService.disposeNow();
+  }
+
+  @Test
+  void lastKnownGoodIsReturnedWithoutCallsWhileTheServiceIsDown() {
+    AtomicBoolean partial = new AtomicBoolean();
+    assertEquals(2, getRecommendations(1, partial).size());
+    assertFalse(partial.get());
+
+    serviceUp.set(false);
+
+    for (int i = 0; i < FAILURE_THRESHOLD * 3; i++) {
+      partial.set(false);
+      List<Recommendation> recommendations = getRecommendations(1, partial);
+      assertEquals(2, recommendations.size());
+      assertEquals(2, recommendations.get(1).getRecommendationId());
+      assertTrue(partial.get());
+    }
+
+    // The first call, then the failed calls that opened the circuit breaker
+    assertEquals(1 + FAILURE_THRESHOLD, requests.get());
+
+    // Nothing is known about a product that was never fetched
+    partial.set(false);
+    assertTrue(getRecommendations(2, partial).isEmpty());
+    assertTrue(partial.get());
+    assertEquals(1 + FAILURE_THRESHOLD, requests.get());
+  }
+
+  private List<Recommendation> getRecommendations(int productId, AtomicBoolean partial) {
+    return integration
+        .getRecommendationsPage(productId, null, 10)
+        .collectList()
+        .contextWrite(Context.of(ProductCompositeIntegration.PARTIAL_RESULT, partial))
+        .block(Duration.ofSeconds(10));
+  }
+}
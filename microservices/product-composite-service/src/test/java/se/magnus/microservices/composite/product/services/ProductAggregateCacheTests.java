@@ -0,0 +1,49 @@
+package se.magnus.microservices.composite.product.services;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import se.magnus.api.composite.product.ProductAggregate;
+
+class ProductAggregateCacheTests {
+
+  private static final int PRODUCT_ID = 1;
+
+  private ProductAggregateCache cache;
+
+  @BeforeEach
+  void setUp() {
+    cache = new ProductAggregateCache(new SimpleMeterRegistry(), true, 1000, Duration.ofHours(1));
+  }
+
+  @Test
+  void loadIsCached() {
+    ProductAggregate aggregate = aggregate("name");
+    cache.put(PRODUCT_ID, aggregate, cache.generation());
+
+    assertSame(aggregate, cache.getIfPresent(PRODUCT_ID));
+  }
+
+  @Test
+  void loadThatStartedBeforeAnInvalidationIsNotCached() {
+    long generation = cache.generation();
+
+    // A write ends while the load is in flight
+    cache.invalidate(PRODUCT_ID);
+    cache.put(PRODUCT_ID, aggregate("old name"), generation);
+
+    assertNull(cache.getIfPresent(PRODUCT_ID));
+
+    ProductAggregate reloaded = aggregate("new name");
+    cache.put(PRODUCT_ID, reloaded, cache.generation());
+    assertSame(reloaded, cache.getIfPresent(PRODUCT_ID));
+  }
+
+  private static ProductAggregate aggregate(String name) {
+    return new ProductAggregate(PRODUCT_ID, name, 1, null, null, null);
+  }
+}
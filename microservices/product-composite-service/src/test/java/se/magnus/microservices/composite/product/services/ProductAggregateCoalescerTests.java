@@ -0,0 +1,118 @@
+package se.magnus.microservices.composite.product.services;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import se.magnus.api.composite.product.ProductAggregate;
+
+class ProductAggregateCoalescerTests {
+
+  private static final int CALLERS = 50;
+  private static final int PRODUCT_ID = 1;
+
+  private MeterRegistry registry;
+  private ProductAggregateCoalescer coalescer;
+  private ExecutorService callers;
+
+  private final AtomicInteger loads = new AtomicInteger();
+
+  @BeforeEach
+  void setUp() {
+    registry = new SimpleMeterRegistry();
+    coalescer = new ProductAggregateCoalescer(registry);
+    callers = Executors.newFixedThreadPool(CALLERS);
+  }
+
+  @AfterEach
+  void tearDown() {
+    callers.shutdownNow();
+  }
+
+  @Test
+  void concurrentCallersShareOneLoad() throws Exception {
+    Sinks.One<ProductAggregate> response = Sinks.one();
+    List<CompletableFuture<ProductAggregate>> results = callConcurrently(response);
+
+    ProductAggregate aggregate = new ProductAggregate(PRODUCT_ID, "name", 1, null, null, null);
+    response.tryEmitValue(aggregate);
+
+    for (CompletableFuture<ProductAggregate> result : results) {
+      assertSame(aggregate, result.get(5, SECONDS));
+    }
+    assertEquals(1, loads.get());
+    assertTrue(registry.get("product.composite.coalesced").counter().count() > 0);
+
+    // The completed load is dropped, so the next caller starts a new one
+    coalescer.execute(PRODUCT_ID, this::load).block(Duration.ofSeconds(5));
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  void failedLoadIsSharedAndDropped() throws Exception {
+    Sinks.One<ProductAggregate> response = Sinks.one();
+    List<CompletableFuture<ProductAggregate>> results = callConcurrently(response);
+
+    response.tryEmitError(new IllegalStateException("Product service is down"));
+
+    for (CompletableFuture<ProductAggregate> result : results) {
+      assertThrows(Exception.class, () -> result.get(5, SECONDS));
+    }
+    assertEquals(1, loads.get());
+
+    coalescer.execute(PRODUCT_ID, this::load).block(Duration.ofSeconds(5));
+    assertEquals(2, loads.get());
+  }
+
+  // Subscribes CALLERS callers from separate threads, and waits until all of them are subscribed
+  // to the load, which is still in flight
+  private List<CompletableFuture<ProductAggregate>> callConcurrently(
+      Sinks.One<ProductAggregate> response) throws InterruptedException {
+    List<CompletableFuture<ProductAggregate>> results = new ArrayList<>();
+    CountDownLatch subscribed = new CountDownLatch(CALLERS);
+    for (int i = 0; i < CALLERS; i++) {
+      CompletableFuture<ProductAggregate> result = new CompletableFuture<>();
+      callers.execute(
+          () ->
+              coalescer
+                  .execute(
+                      PRODUCT_ID,
+                      () -> {
+                        loads.incrementAndGet();
+                        return response.asMono();
+                      })
+                  .doOnSubscribe(subscription -> subscribed.countDown())
+                  .subscribe(result::complete, result::completeExceptionally));
+      results.add(result);
+    }
+
+    assertTrue(subscribed.await(5, SECONDS));
+    return results;
+  }
+
+  private Mono<ProductAggregate> load() {
+    return Mono.fromCallable(
+        () -> {
+          loads.incrementAndGet();
+          return new ProductAggregate(PRODUCT_ID, "name", 1, null, null, null);
+        });
+  }
+
+}
@@ -0,0 +1,119 @@
+package se.magnus.microservices.composite.product.services;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import se.magnus.api.composite.product.ProductAggregate;
+import se.magnus.api.core.product.Product;
+import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.api.core.review.Review;
+
+class ProductAggregateJsonEncoderTests {
+
+  private final ObjectMapper mapper = Jackson2ObjectMapperBuilder.json().build();
+  private final ProductAggregateJsonEncoder encoder = new ProductAggregateJsonEncoder(mapper);
+
+  private final Product product = new Product(1, "name", 2, "pro");
+  private final List<Recommendation> recommendations =
+      List.of(
+          new Recommendation(1, 1, "a1", 1, "c1", "rec"),
+          new Recommendation(1, 2, "a2", 2, null, "rec"));
+  private final List<Review> reviews = List.of(new Review(1, 1, "a\"1", "s1", "c\n1", "rev"));
+
+  @Test
+  void writesTheSameJsonAsTheObjectMapper() throws IOException {
+    LazyProductAggregate lazy = new LazyProductAggregate(product, recommendations, reviews, "cmp");
+    lazy.setReviewsCursor(1);
+    ProductAggregate dto =
+        ProductCompositeServiceImpl.createProductAggregate(
+            product, recommendations, reviews, "cmp");
+    dto.setReviewsCursor(1);
+
+    assertEquals(mapper.readTree(mapper.writeValueAsBytes(dto)), encode(lazy));
+  }
+
+  @Test
+  void writesMissingListsAsNull() throws IOException {
+    LazyProductAggregate lazy = new LazyProductAggregate(product, null, null, "cmp");
+    ProductAggregate dto =
+        ProductCompositeServiceImpl.createProductAggregate(product, null, null, "cmp");
+
+    assertEquals(mapper.readTree(mapper.writeValueAsBytes(dto)), encode(lazy));
+  }
+
+  @Test
+  void createsTheSummariesWhenAskedFor() {
+    LazyProductAggregate lazy = new LazyProductAggregate(product, recommendations, reviews, "cmp");
+    ProductAggregate dto =
+        ProductCompositeServiceImpl.createProductAggregate(
+            product, recommendations, reviews, "cmp");
+
+    assertEquals(dto.getRecommendations(), lazy.getRecommendations());
+    assertEquals(dto.getReviews(), lazy.getReviews());
+  }
+
+  @Test
+  void doesNotChangeWhenTheSummariesAreAskedFor() throws IOException {
+    LazyProductAggregate lazy = new LazyProductAggregate(product, recommendations, reviews, "cmp");
+    JsonNode before = encode(lazy);
+
+    // equals, hashCode and toString of ProductAggregate call the getters too
+    lazy.toString();
+    assertEquals(lazy.getReviews(), lazy.getReviews());
+    assertEquals(before, encode(lazy));
+    assertThrows(UnsupportedOperationException.class, () -> lazy.setReviews(List.of()));
+  }
+
+  @Test
+  void hasTheSameETagAsTheObjectMapperAggregate() {
+    LazyProductAggregate lazy = new LazyProductAggregate(product, recommendations, reviews, "cmp");
+    lazy.setReviewsCursor(1);
+    ProductAggregate dto =
+        ProductCompositeServiceImpl.createProductAggregate(
+            product, recommendations, reviews, "cmp");
+    dto.setReviewsCursor(1);
+
+    assertEquals(ProductCompositeServiceImpl.etag(dto), lazy.etag());
+  }
+
+  @Test
+  void hasAnotherETagForContentWithTheSameHashCode() {
+    // "Aa" and "BB" have the same String.hashCode
+    LazyProductAggregate aa =
+        new LazyProductAggregate(new Product(1, "Aa", 2, "pro"), null, reviews, "cmp");
+    LazyProductAggregate bb =
+        new LazyProductAggregate(new Product(1, "BB", 2, "pro"), null, reviews, "cmp");
+
+    assertNotEquals(aa.etag(), bb.etag());
+    assertNotEquals(
+        ProductCompositeServiceImpl.etag(
+            ProductCompositeServiceImpl.createProductAggregate(
+                new Product(1, "Aa", 2, "pro"), null, null, "cmp")),
+        ProductCompositeServiceImpl.etag(
+            ProductCompositeServiceImpl.createProductAggregate(
+                new Product(1, "BB", 2, "pro"), null, null, "cmp")));
+  }
+
+  private JsonNode encode(ProductAggregate aggregate) throws IOException {
+    DataBuffer buffer =
+        encoder.encodeValue(
+            aggregate,
+            DefaultDataBufferFactory.sharedInstance,
+            ResolvableType.forClass(ProductAggregate.class),
+            APPLICATION_JSON,
+            Map.of());
+    return mapper.readTree(buffer.asInputStream(true));
+  }
+}
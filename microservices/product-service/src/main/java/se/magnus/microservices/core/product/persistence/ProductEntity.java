@@ -2,10 +2,14 @@ package se.magnus.microservices.core.product.persistence;
 
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 @Document(collection = "products")
+@CompoundIndex(
+    name = "prod-api-fields-version",
+    def = "{'productId': 1, 'name': 1, 'weight': 1, 'version': 1, '_id': 1}")
 public class ProductEntity {
 
   @Id private String id;
@@ -1,8 +1,29 @@
 package se.magnus.microservices.core.product.persistence;
 
+import java.util.Collection;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.data.repository.reactive.ReactiveCrudRepository;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 public interface ProductRepository extends ReactiveCrudRepository<ProductEntity, String> {
+
+  /**
+   * Projection on the fields used by the API, and the _id and version that its ETag is computed
+   * from. The queries below are answered from the prod-api-fields-version index without reading the
+   * documents.
+   */
+  String API_FIELDS = "{'_id': 1, 'productId': 1, 'name': 1, 'weight': 1, 'version': 1}";
+
   Mono<ProductEntity> findByProductId(int productId);
+
+  Flux<ProductEntity> findByProductIdIn(Collection<Integer> productIds);
+
+  /** Read-only lookup, the returned entity only has the API fields, id and version. */
+  @Query(value = "{'productId': ?0}", fields = API_FIELDS)
+  Mono<ProductEntity> findApiFieldsByProductId(int productId);
+
+  /** Read-only lookup, the returned entities only have the API fields, id and version. */
+  @Query(value = "{'productId': {$in: ?0}}", fields = API_FIELDS)
+  Flux<ProductEntity> findApiFieldsByProductIdIn(Collection<Integer> productIds);
 }
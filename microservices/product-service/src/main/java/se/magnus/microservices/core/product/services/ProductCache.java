@@ -0,0 +1,255 @@
+package se.magnus.microservices.core.product.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.ChangeStreamEvent;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+import se.magnus.microservices.core.product.persistence.ProductEntity;
+
+/**
+ * In-process cache of products, bounded by size.
+ *
+ * <p>With invalidation "change-stream", entries never expire. Instead a MongoDB change stream on
+ * the products collection removes the entries of changed and deleted products, so all replicas
+ * stay coherent. Change streams require a replica set; while the stream is down the cache is
+ * bypassed. With invalidation "ttl", entries expire after the configured time to live instead.
+ *
+ * <p>Hit, miss and eviction counters are published as the "products" cache metrics, see
+ * $HOST:$PORT/actuator/metrics/cache.gets.
+ */
+@Component
+public class ProductCache {
+  private static final Logger LOG = LoggerFactory.getLogger(ProductCache.class);
+
+  private static final String CHANGE_STREAM = "change-stream";
+
+  private final ReactiveMongoTemplate mongoTemplate;
+  private final boolean enabled;
+  private final boolean changeStream;
+  private final Cache<Integer, ProductEntity> cache;
+
+  // The productId of each cached entity by its _id, change events only carry the _id
+  private final ConcurrentMap<String, Integer> productIdsById = new ConcurrentHashMap<>();
+
+  // Incremented before every invalidation, so a load that raced with one is not kept
+  private final AtomicLong invalidations = new AtomicLong();
+
+  private volatile boolean listening;
+  private Disposable subscription;
+
+  @Autowired
+  public ProductCache(
+      ReactiveMongoTemplate mongoTemplate,
+      MeterRegistry registry,
+      @Value("${app.product-cache.enabled:true}") boolean enabled,
+      @Value("${app.product-cache.invalidation:change-stream}") String invalidation,
+      @Value("${app.product-cache.max-size:10000}") long maxSize,
+      @Value("${app.product-cache.ttl:10s}") Duration ttl) {
+    LOG.info(
+        "Creates a product cache, enabled = {}, invalidation = {}, max size = {}, ttl = {}",
+        enabled,
+        invalidation,
+        maxSize,
+        ttl);
+    this.mongoTemplate = mongoTemplate;
+    this.enabled = enabled;
+    this.changeStream = CHANGE_STREAM.equals(invalidation);
+
+    Caffeine<Integer, ProductEntity> builder =
+        Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .recordStats()
+            .evictionListener(
+                (Integer productId, ProductEntity entity, RemovalCause cause) ->
+                    unindex(entity, productId));
+    if (!changeStream) {
+      builder.expireAfterWrite(ttl);
+    }
+    this.cache = builder.build();
+    CaffeineCacheMetrics.monitor(registry, cache, "products");
+  }
+
+  @PostConstruct
+  void start() {
+    if (enabled && changeStream) {
+      subscription = listen().subscribe();
+    }
+  }
+
+  @PreDestroy
+  void stop() {
+    if (subscription != null) {
+      subscription.dispose();
+    }
+  }
+
+  /**
+   * Returns the cached product, or loads and caches it.
+   *
+   * @param productId Id of the product
+   * @param loader reads the product from the database
+   * @return the product, or empty if it is not found
+   */
+  public Mono<ProductEntity> get(int productId, IntFunction<Mono<ProductEntity>> loader) {
+    if (!enabled || (changeStream && !listening)) {
+      return loader.apply(productId);
+    }
+
+    ProductEntity cached = cache.getIfPresent(productId);
+    if (cached != null) {
+      LOG.debug("Found a cached product for productId: {}", productId);
+      return Mono.just(cached);
+    }
+
+    return Mono.defer(
+        () -> {
+          long invalidationsBeforeLoad = invalidations.get();
+          return loader
+              .apply(productId)
+              .doOnNext(
+                  entity -> {
+                    productIdsById.put(entity.getId(), productId);
+                    cache.put(productId, entity);
+                    // The load may have read the product before a change that was already handled
+                    if (invalidations.get() != invalidationsBeforeLoad) {
+                      unindex(cache.asMap().remove(productId), productId);
+                    }
+                  });
+        });
+  }
+
+  public void invalidate(int productId) {
+    LOG.debug("Invalidates the cached product for productId: {}", productId);
+    invalidations.incrementAndGet();
+    unindex(cache.asMap().remove(productId), productId);
+  }
+
+  private void invalidateAll() {
+    LOG.debug("Invalidates all cached products");
+    invalidations.incrementAndGet();
+    cache.invalidateAll();
+    productIdsById.clear();
+  }
+
+  private void invalidateById(String id) {
+    invalidations.incrementAndGet();
+    Integer productId = productIdsById.remove(id);
+    if (productId != null) {
+      cache.invalidate(productId);
+    }
+  }
+
+  private void unindex(ProductEntity entity, int productId) {
+    if (entity != null) {
+      productIdsById.remove(entity.getId(), productId);
+    }
+  }
+
+  private Flux<ChangeStreamEvent<Document>> listen() {
+    return Flux.defer(
+            () -> {
+              // Events since the cache was last cleared are replayed, so a change that happens
+              // while the stream is opened is not missed
+              Instant startAt = Instant.now();
+              invalidateAll();
+              return supportsChangeStreams()
+                  .thenMany(
+                      mongoTemplate
+                          .changeStream(Document.class)
+                          .watchCollection(ProductEntity.class)
+                          .resumeAt(startAt)
+                          .listen()
+                          .doOnRequest(demand -> markListening()));
+            })
+        .doOnNext(this::onChange)
+        .doOnError(
+            ex -> {
+              LOG.warn(
+                  "Product change stream failed, bypasses the cache until it is reopened. "
+                      + "Use app.product-cache.invalidation=ttl without a replica set. {}",
+                  ex.toString());
+              listening = false;
+              invalidateAll();
+            })
+        .retryWhen(
+            Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+                .maxBackoff(Duration.ofMinutes(1))
+                .transientErrors(true))
+        .repeat();
+  }
+
+  // The driver does not signal when the change stream cursor is opened. The products are cached
+  // once the deployment is known to support change streams and the stream has been asked for
+  // events, changes made while the cursor is being opened are replayed from startAt.
+  private void markListening() {
+    if (!listening) {
+      LOG.info("Product change stream is open, products are cached");
+      listening = true;
+    }
+  }
+
+  private Mono<Void> supportsChangeStreams() {
+    return mongoTemplate
+        .executeCommand(new Document("hello", 1))
+        .flatMap(
+            hello ->
+                (hello.containsKey("setName") || "isdbgrid".equals(hello.get("msg")))
+                    ? Mono.<Void>empty()
+                    : Mono.error(
+                        new IllegalStateException(
+                            "Change streams require a replica set or a sharded cluster")));
+  }
+
+  private void onChange(ChangeStreamEvent<Document> event) {
+    ChangeStreamDocument<Document> raw = event.getRaw();
+    OperationType operationType = event.getOperationType();
+    if (raw == null || operationType == null) {
+      return;
+    }
+
+    switch (operationType) {
+      case INSERT:
+        // A new product has no cache entry
+        break;
+      case UPDATE:
+      case REPLACE:
+      case DELETE:
+        BsonValue id = raw.getDocumentKey().get("_id");
+        LOG.debug("Product change stream: {} of {}", operationType, id);
+        if (id != null && id.isObjectId()) {
+          invalidateById(id.asObjectId().getValue().toHexString());
+        } else {
+          invalidateAll();
+        }
+        break;
+      default:
+        // The collection was dropped or renamed, the stream ends after this event and is reopened
+        LOG.debug("Product change stream: {}", operationType);
+        invalidateAll();
+    }
+  }
+}
@@ -1,12 +1,13 @@
 package se.magnus.microservices.core.product.services;
 
-import static java.util.logging.Level.FINE;
-
+import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import se.magnus.api.core.product.Product;
 import se.magnus.api.core.product.ProductService;
@@ -14,7 +15,9 @@ import se.magnus.api.exceptions.InvalidInputException;
 import se.magnus.api.exceptions.NotFoundException;
 import se.magnus.microservices.core.product.persistence.ProductEntity;
 import se.magnus.microservices.core.product.persistence.ProductRepository;
+import se.magnus.util.http.ETags;
 import se.magnus.util.http.ServiceUtil;
+import se.magnus.util.reactor.SignalLog;
 
 @RestController
 public class ProductServiceImpl implements ProductService {
@@ -23,13 +26,24 @@ public class ProductServiceImpl implements ProductService {
   private final ServiceUtil serviceUtil;
   private final ProductRepository repository;
   private final ProductMapper mapper;
+  private final ProductCache cache;
+  private final SignalLog signalLog;
+  private final int maxProductIds;
 
   @Autowired
   public ProductServiceImpl(
-      ProductRepository repository, ProductMapper mapper, ServiceUtil serviceUtil) {
+      ProductRepository repository,
+      ProductMapper mapper,
+      ServiceUtil serviceUtil,
+      ProductCache cache,
+      @Value("${app.max-product-ids:200}") int maxProductIds,
+      @Value("${app.reactor-log.enabled:true}") boolean reactorLogEnabled) {
     this.repository = repository;
     this.mapper = mapper;
     this.serviceUtil = serviceUtil;
+    this.cache = cache;
+    this.signalLog = new SignalLog(LOG, reactorLogEnabled);
+    this.maxProductIds = maxProductIds;
   }
 
   @Override
@@ -38,7 +52,7 @@ public class ProductServiceImpl implements ProductService {
 
     return repository
         .save(entity)
-        .log(LOG.getName(), FINE)
+        .transform(signalLog::mono)
         .onErrorMap(
             DuplicateKeyException.class,
             ex -> new InvalidInputException("Duplicate key, Product Id: " + body.getProductId()))
@@ -49,11 +63,33 @@ public class ProductServiceImpl implements ProductService {
   public Mono<Product> getProduct(int productId) {
     if (productId < 1) throw new InvalidInputException("Invalid productId: " + productId);
 
-    return repository
-        .findByProductId(productId)
+    return cache
+        .get(productId, repository::findApiFieldsByProductId)
         .switchIfEmpty(
             Mono.error(new NotFoundException("No product found for productId: " + productId)))
-        .log(LOG.getName(), FINE)
+        .transform(signalLog::mono)
+        .flatMap(
+            entity -> {
+              Product res = mapper.entityToApi(entity);
+              res.setServiceAddress(serviceUtil.getServiceAddress());
+              return ETags.conditional(res, ETags.weak(entity.getId(), entity.getVersion()));
+            });
+  }
+
+  @Override
+  public Flux<Product> getProducts(List<Integer> productIds) {
+    if (productIds.size() > maxProductIds) {
+      throw new InvalidInputException(
+          "Too many productIds: " + productIds.size() + ", max is " + maxProductIds);
+    }
+    productIds.forEach(
+        productId -> {
+          if (productId < 1) throw new InvalidInputException("Invalid productId: " + productId);
+        });
+
+    return repository
+        .findApiFieldsByProductIdIn(productIds)
+        .transform(signalLog::flux)
         .map(mapper::entityToApi)
         .map(
             res -> {
@@ -66,7 +102,8 @@ public class ProductServiceImpl implements ProductService {
   public Mono<Void> deleteProduct(int productId) {
     return repository
         .findByProductId(productId)
-        .log(LOG.getName(), FINE)
-        .flatMap(repository::delete);
+        .transform(signalLog::mono)
+        .flatMap(repository::delete)
+        .doFinally(signal -> cache.invalidate(productId));
   }
 }
@@ -1,12 +1,14 @@
 package se.magnus.microservices.core.product;
 
 import java.util.Objects;
+import org.bson.Document;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
 import reactor.test.StepVerifier;
 import se.magnus.microservices.core.product.persistence.ProductEntity;
 import se.magnus.microservices.core.product.persistence.ProductRepository;
@@ -16,6 +18,8 @@ class PersistenceTests extends MongoDbTestBase {
 
   @Autowired private ProductRepository repository;
 
+  @Autowired private ReactiveMongoTemplate mongoTemplate;
+
   private ProductEntity savedEntity;
 
   @BeforeEach
@@ -74,6 +78,37 @@ class PersistenceTests extends MongoDbTestBase {
         .verifyComplete();
   }
 
+  @Test
+  void getApiFieldsByProductId() {
+    StepVerifier.create(repository.findApiFieldsByProductId(savedEntity.getProductId()))
+        .expectNextMatches(
+            foundEntity ->
+                foundEntity.getId().equals(savedEntity.getId())
+                    && foundEntity.getVersion().equals(savedEntity.getVersion())
+                    && foundEntity.getProductId() == savedEntity.getProductId()
+                    && foundEntity.getName().equals(savedEntity.getName())
+                    && foundEntity.getWeight() == savedEntity.getWeight())
+        .verifyComplete();
+  }
+
+  @Test
+  void apiFieldsLookupIsCoveredByIndex() {
+    Document explain =
+        new Document(
+                "explain",
+                new Document("find", "products")
+                    .append("filter", new Document("productId", savedEntity.getProductId()))
+                    .append("projection", Document.parse(ProductRepository.API_FIELDS)))
+            .append("verbosity", "executionStats");
+
+    StepVerifier.create(mongoTemplate.executeCommand(explain))
+        .expectNextMatches(
+            result ->
+                result.get("executionStats", Document.class).getInteger("totalDocsExamined")
+                    == 0)
+        .verifyComplete();
+  }
+
   @Test
   void duplicateError() {
     ProductEntity entity = new ProductEntity(savedEntity.getProductId(), "n", 1);
@@ -6,18 +6,26 @@ import static org.springframework.http.HttpStatus.*;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
 import static reactor.core.publisher.Mono.just;
 
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import se.magnus.api.core.product.Product;
+import se.magnus.microservices.core.product.persistence.ProductEntity;
 import se.magnus.microservices.core.product.persistence.ProductRepository;
+import se.magnus.util.http.HttpErrorInfo;
 
 @SpringBootTest(webEnvironment = RANDOM_PORT)
 class ProductServiceApplicationTests extends MongoDbTestBase {
 
+  private static final MediaType APPLICATION_SMILE =
+      new MediaType("application", "x-jackson-smile");
+
   @Autowired private WebTestClient client;
 
   @Autowired private ProductRepository repository;
@@ -42,6 +50,143 @@ class ProductServiceApplicationTests extends MongoDbTestBase {
     getAndVerifyProduct(productId, OK).jsonPath("$.productId").isEqualTo(productId);
   }
 
+  @Test
+  void getProductNotModified() {
+
+    int productId = 1;
+
+    postAndVerifyProduct(productId, OK);
+
+    String etag = getETag(productId);
+    assertNotNull(etag);
+
+    client
+        .get()
+        .uri("/product/" + productId)
+        .accept(APPLICATION_JSON)
+        .ifNoneMatch(etag)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(NOT_MODIFIED)
+        .expectBody()
+        .isEmpty();
+
+    // A re-created product is a new document, so the client's copy is stale
+    deleteAndVerifyProduct(productId, OK);
+    postAndVerifyProduct(productId, OK);
+    assertNotEquals(etag, getETag(productId));
+  }
+
+  @Test
+  void cachedProductIsInvalidatedOnChange() throws InterruptedException {
+
+    int productId = 1;
+
+    postAndVerifyProduct(productId, OK);
+    getAndVerifyProduct(productId, OK).jsonPath("$.name").isEqualTo("Name " + productId);
+
+    // Updated directly in the database, as by another replica
+    ProductEntity entity = repository.findByProductId(productId).block();
+    entity.setName("New name");
+    repository.save(entity).block();
+
+    // The change stream invalidates the cached product asynchronously
+    String name = null;
+    for (int attempt = 0; attempt < 50 && !"New name".equals(name); attempt++) {
+      Thread.sleep(100);
+      name = getProduct(productId).getName();
+    }
+    assertEquals("New name", name);
+  }
+
+  @Test
+  void getProductsByIds() {
+
+    postAndVerifyProduct(1, OK);
+    postAndVerifyProduct(2, OK);
+    postAndVerifyProduct(3, OK);
+
+    client
+        .get()
+        .uri("/product/batch?productIds=1,3,13")
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(OK)
+        .expectHeader()
+        .contentType(APPLICATION_JSON)
+        .expectBody()
+        .jsonPath("$.length()")
+        .isEqualTo(2);
+  }
+
+  @Test
+  void getProductsWithTooManyIds() {
+
+    String productIds =
+        IntStream.rangeClosed(1, 201).mapToObj(String::valueOf).collect(Collectors.joining(","));
+
+    client
+        .get()
+        .uri("/product/batch?productIds=" + productIds)
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(UNPROCESSABLE_ENTITY)
+        .expectBody()
+        .jsonPath("$.message")
+        .isEqualTo("Too many productIds: 201, max is 200");
+  }
+
+  @Test
+  void createAndGetProductAsSmile() {
+
+    int productId = 1;
+
+    client
+        .post()
+        .uri("/product")
+        .contentType(APPLICATION_SMILE)
+        .body(just(new Product(productId, "Name " + productId, productId, "SA")), Product.class)
+        .accept(APPLICATION_SMILE)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(OK)
+        .expectHeader()
+        .contentType(APPLICATION_SMILE);
+
+    Product product =
+        client
+            .get()
+            .uri("/product/" + productId)
+            .accept(APPLICATION_SMILE)
+            .exchange()
+            .expectStatus()
+            .isEqualTo(OK)
+            .expectHeader()
+            .contentType(APPLICATION_SMILE)
+            .expectBody(Product.class)
+            .returnResult()
+            .getResponseBody();
+    assertEquals("Name " + productId, product.getName());
+
+    // Errors are encoded in Smile as well
+    HttpErrorInfo error =
+        client
+            .get()
+            .uri("/product/13")
+            .accept(APPLICATION_SMILE)
+            .exchange()
+            .expectStatus()
+            .isEqualTo(NOT_FOUND)
+            .expectHeader()
+            .contentType(APPLICATION_SMILE)
+            .expectBody(HttpErrorInfo.class)
+            .returnResult()
+            .getResponseBody();
+    assertEquals("No product found for productId: 13", error.getMessage());
+  }
+
   @Test
   void duplicateError() {
 
@@ -128,6 +273,32 @@ class ProductServiceApplicationTests extends MongoDbTestBase {
         .expectBody();
   }
 
+  private Product getProduct(int productId) {
+    return client
+        .get()
+        .uri("/product/" + productId)
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(OK)
+        .expectBody(Product.class)
+        .returnResult()
+        .getResponseBody();
+  }
+
+  private String getETag(int productId) {
+    return client
+        .get()
+        .uri("/product/" + productId)
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(OK)
+        .returnResult(Product.class)
+        .getResponseHeaders()
+        .getETag();
+  }
+
   private WebTestClient.BodyContentSpec postAndVerifyProduct(
       int productId, HttpStatus expectedStatus) {
     Product product = new Product(productId, "Name " + productId, productId, "SA");
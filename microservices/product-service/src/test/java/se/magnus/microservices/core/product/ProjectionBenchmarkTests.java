@@ -0,0 +1,81 @@
+package se.magnus.microservices.core.product;
+
+import static com.mongodb.client.model.Filters.eq;
+
+import java.util.function.IntFunction;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import se.magnus.microservices.core.product.persistence.ProductEntity;
+import se.magnus.microservices.core.product.persistence.ProductRepository;
+
+/**
+ * Compares reading full product documents with reading the API fields only, which is answered from
+ * the prod-api-fields-version index.
+ *
+ * <p>Run with "./gradlew :microservices:product-service:benchmark" and compare the logged results.
+ */
+@Tag("benchmark")
+@DataMongoTest(properties = "logging.level.org.springframework.data.mongodb.core=INFO")
+class ProjectionBenchmarkTests extends MongoDbTestBase {
+  private static final Logger LOG = LoggerFactory.getLogger(ProjectionBenchmarkTests.class);
+
+  private static final int PRODUCTS = 1000;
+  private static final int READS = 50_000;
+  private static final int CONCURRENCY = 64;
+
+  @Autowired private ProductRepository repository;
+
+  @Autowired private ReactiveMongoTemplate mongoTemplate;
+
+  @Test
+  void fullDocumentsVersusProjection() {
+    repository.deleteAll().block();
+    Flux.range(1, PRODUCTS)
+        .map(productId -> new ProductEntity(productId, "Product name " + productId, productId))
+        .flatMap(repository::save, CONCURRENCY)
+        .blockLast();
+
+    logDocumentSize("full", null);
+    logDocumentSize("projected", Document.parse(ProductRepository.API_FIELDS));
+
+    // Warm up JIT and connection pool, then measure both read paths
+    measure("warm-up", i -> repository.findByProductId(1 + i % PRODUCTS));
+    measure("full", i -> repository.findByProductId(1 + i % PRODUCTS));
+    measure("projected", i -> repository.findApiFieldsByProductId(1 + i % PRODUCTS));
+  }
+
+  private void measure(String name, IntFunction<Mono<ProductEntity>> read) {
+    long start = System.nanoTime();
+    Flux.range(0, READS).flatMap(read::apply, CONCURRENCY).blockLast();
+    long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+
+    LOG.info(
+        "{} reads: {} in {} ms, {} reads/s", name, READS, elapsedMs, READS * 1000L / elapsedMs);
+  }
+
+  private void logDocumentSize(String name, Document projection) {
+    RawBsonDocument document =
+        mongoTemplate
+            .getCollection("products")
+            .flatMap(
+                collection ->
+                    Mono.from(
+                        collection
+                            .withDocumentClass(RawBsonDocument.class)
+                            .find(eq("productId", 1))
+                            .projection(projection)
+                            .first()))
+            .block();
+
+    LOG.info("{} document size: {} bytes", name, document.getByteBuffer().remaining());
+  }
+}
@@ -1,9 +1,44 @@
 package se.magnus.microservices.core.recommendation.persistence;
 
+import java.util.Collection;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.data.repository.reactive.ReactiveCrudRepository;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 public interface RecommendationRepository
     extends ReactiveCrudRepository<RecommendationEntity, String> {
+
+  /**
+   * Projection that leaves out the _class type hint, which the API does not use. The _id and
+   * version are kept for the ETags. The documents are still read, an index covering the free text
+   * content would cost more than it saves.
+   */
+  String API_FIELDS = "{'_class': 0}";
+
   Flux<RecommendationEntity> findByProductId(int productId);
+
+  Flux<RecommendationEntity> findByProductIdIn(Collection<Integer> productIds);
+
+  /** Read-only lookup, the returned entities have no type hint. */
+  @Query(value = "{'productId': ?0}", fields = API_FIELDS)
+  Flux<RecommendationEntity> findApiFieldsByProductId(int productId);
+
+  /**
+   * Keyset pagination, served by the unique (productId, recommendationId) index. Read-only, the
+   * returned entities have no type hint.
+   */
+  @Query(
+      value = "{'productId': ?0, 'recommendationId': {$gt: ?1}}",
+      fields = API_FIELDS,
+      sort = "{'recommendationId': 1}")
+  Flux<RecommendationEntity> findApiFieldsPage(int productId, int afterId, Pageable pageable);
+
+  /** Read-only lookup, the returned entities have no type hint. */
+  @Query(value = "{'productId': {$in: ?0}}", fields = API_FIELDS)
+  Flux<RecommendationEntity> findApiFieldsByProductIdIn(Collection<Integer> productIds);
+
+  /** Deletes the recommendations of a product with one deleteMany, returns the number deleted. */
+  Mono<Long> deleteByProductId(int productId);
 }
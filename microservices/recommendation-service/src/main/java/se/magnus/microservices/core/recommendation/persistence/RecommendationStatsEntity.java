@@ -0,0 +1,66 @@
+package se.magnus.microservices.core.recommendation.persistence;
+
+import java.time.Instant;
+import java.util.Map;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Statistics of the recommendations of one product. Updated with $inc when recommendations are
+ * created, and removed when they are deleted.
+ */
+@Document(collection = "recommendation_stats")
+public class RecommendationStatsEntity {
+
+  @Id private int productId;
+
+  private long count;
+  private long rateSum;
+
+  // Number of recommendations per rate, Mongo field names are strings
+  private Map<String, Long> rateHistogram;
+
+  private Instant lastUpdated;
+
+  public RecommendationStatsEntity() {}
+
+  public int getProductId() {
+    return productId;
+  }
+
+  public void setProductId(int productId) {
+    this.productId = productId;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public void setCount(long count) {
+    this.count = count;
+  }
+
+  public long getRateSum() {
+    return rateSum;
+  }
+
+  public void setRateSum(long rateSum) {
+    this.rateSum = rateSum;
+  }
+
+  public Map<String, Long> getRateHistogram() {
+    return rateHistogram;
+  }
+
+  public void setRateHistogram(Map<String, Long> rateHistogram) {
+    this.rateHistogram = rateHistogram;
+  }
+
+  public Instant getLastUpdated() {
+    return lastUpdated;
+  }
+
+  public void setLastUpdated(Instant lastUpdated) {
+    this.lastUpdated = lastUpdated;
+  }
+}
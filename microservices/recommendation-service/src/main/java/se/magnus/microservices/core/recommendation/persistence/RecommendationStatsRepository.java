@@ -0,0 +1,6 @@
+package se.magnus.microservices.core.recommendation.persistence;
+
+import org.springframework.data.repository.reactive.ReactiveCrudRepository;
+
+public interface RecommendationStatsRepository
+    extends ReactiveCrudRepository<RecommendationStatsEntity, Integer> {}
@@ -1,11 +1,14 @@
 package se.magnus.microservices.core.recommendation.services;
 
 import java.util.List;
+import java.util.Map;
 import org.mapstruct.Mapper;
 import org.mapstruct.Mapping;
 import org.mapstruct.Mappings;
 import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.api.core.recommendation.RecommendationStats;
 import se.magnus.microservices.core.recommendation.persistence.RecommendationEntity;
+import se.magnus.microservices.core.recommendation.persistence.RecommendationStatsEntity;
 
 @Mapper(componentModel = "spring")
 public interface RecommendationMapper {
@@ -26,4 +29,9 @@ public interface RecommendationMapper {
   List<Recommendation> entityListToApiList(List<RecommendationEntity> entity);
 
   List<RecommendationEntity> apiListToEntityList(List<Recommendation> api);
+
+  @Mappings({@Mapping(target = "serviceAddress", ignore = true)})
+  RecommendationStats statsEntityToApi(RecommendationStatsEntity entity);
+
+  Map<Integer, Long> histogramToApi(Map<String, Long> histogram);
 }
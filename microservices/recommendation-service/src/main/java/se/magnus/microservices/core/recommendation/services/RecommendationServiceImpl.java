@@ -1,20 +1,44 @@
 package se.magnus.microservices.core.recommendation.services;
 
-import static java.util.logging.Level.FINE;
+import static com.mongodb.ErrorCategory.DUPLICATE_KEY;
+import static java.util.stream.Collectors.counting;
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toSet;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+import org.bson.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.web.bind.annotation.RestController;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import se.magnus.api.core.recommendation.Recommendation;
 import se.magnus.api.core.recommendation.RecommendationService;
+import se.magnus.api.core.recommendation.RecommendationStats;
 import se.magnus.api.exceptions.InvalidInputException;
 import se.magnus.microservices.core.recommendation.persistence.RecommendationEntity;
 import se.magnus.microservices.core.recommendation.persistence.RecommendationRepository;
+import se.magnus.microservices.core.recommendation.persistence.RecommendationStatsEntity;
+import se.magnus.microservices.core.recommendation.persistence.RecommendationStatsRepository;
+import se.magnus.util.http.ETags;
 import se.magnus.util.http.ServiceUtil;
+import se.magnus.util.reactor.SignalLog;
 
 @RestController
 public class RecommendationServiceImpl implements RecommendationService {
@@ -22,16 +46,38 @@ public class RecommendationServiceImpl implements RecommendationService {
 
   private final RecommendationRepository repository;
 
+  private final RecommendationStatsRepository statsRepository;
+
+  private final ReactiveMongoTemplate mongoTemplate;
+
   private final RecommendationMapper mapper;
 
   private final ServiceUtil serviceUtil;
 
+  private final int maxPageSize;
+
+  private final int maxProductIds;
+
+  private final SignalLog signalLog;
+
   @Autowired
   public RecommendationServiceImpl(
-      RecommendationRepository repository, RecommendationMapper mapper, ServiceUtil serviceUtil) {
+      RecommendationRepository repository,
+      RecommendationStatsRepository statsRepository,
+      ReactiveMongoTemplate mongoTemplate,
+      RecommendationMapper mapper,
+      ServiceUtil serviceUtil,
+      @Value("${app.max-page-size:1000}") int maxPageSize,
+      @Value("${app.max-product-ids:200}") int maxProductIds,
+      @Value("${app.reactor-log.enabled:true}") boolean reactorLogEnabled) {
     this.repository = repository;
+    this.statsRepository = statsRepository;
+    this.mongoTemplate = mongoTemplate;
     this.mapper = mapper;
     this.serviceUtil = serviceUtil;
+    this.maxPageSize = maxPageSize;
+    this.maxProductIds = maxProductIds;
+    this.signalLog = new SignalLog(LOG, reactorLogEnabled);
   }
 
   @Override
@@ -40,18 +86,110 @@ public class RecommendationServiceImpl implements RecommendationService {
 
     return repository
         .save(entity)
-        .log(LOG.getName(), FINE)
-        .onErrorMap(
-            DuplicateKeyException.class,
+        .transform(signalLog::mono)
+        .onErrorMap(DuplicateKeyException.class, ex -> duplicateKeyError(List.of(body)))
+        .flatMap(newEntity -> incrementStats(List.of(body)).thenReturn(newEntity))
+        .map(mapper::entityToApi);
+  }
+
+  @Override
+  public Flux<Recommendation> createRecommendations(List<Recommendation> body) {
+    if (body.isEmpty()) {
+      return Flux.empty();
+    }
+
+    List<RecommendationEntity> entities = mapper.apiListToEntityList(body);
+    List<Document> documents =
+        entities.stream()
+            .map(
+                entity -> {
+                  // Set the initial version, as save() does for new versioned entities
+                  entity.setVersion(0);
+                  Document document = new Document();
+                  mongoTemplate.getConverter().write(entity, document);
+                  return document;
+                })
+            .toList();
+
+    // An unordered insertMany tries every document, so all duplicates are reported at once
+    return mongoTemplate
+        .getCollection(mongoTemplate.getCollectionName(RecommendationEntity.class))
+        .flatMap(
+            collection ->
+                Mono.from(
+                    collection.insertMany(documents, new InsertManyOptions().ordered(false))))
+        .transform(signalLog::mono)
+        .then(incrementStats(body))
+        .onErrorResume(
+            MongoBulkWriteException.class,
             ex ->
-                new InvalidInputException(
-                    "Duplicate key, Product Id: "
-                        + body.getProductId()
-                        + ", Recommendation Id:"
-                        + body.getRecommendationId()))
+                incrementStats(insertedOnly(body, ex))
+                    .then(Mono.error(handleBulkWriteError(body, ex))))
+        .thenMany(Flux.fromIterable(entities))
         .map(mapper::entityToApi);
   }
 
+  private List<Recommendation> insertedOnly(
+      List<Recommendation> body, MongoBulkWriteException ex) {
+    Set<Integer> failed =
+        ex.getWriteErrors().stream().map(BulkWriteError::getIndex).collect(toSet());
+    return IntStream.range(0, body.size())
+        .filter(i -> !failed.contains(i))
+        .mapToObj(body::get)
+        .toList();
+  }
+
+  // One upsert per product, that adds the new recommendations to its statistics
+  private Mono<Void> incrementStats(List<Recommendation> created) {
+    return Flux.fromIterable(
+            created.stream().collect(groupingBy(Recommendation::getProductId)).entrySet())
+        .concatMap(
+            entry -> {
+              List<Recommendation> recommendations = entry.getValue();
+              long rateSum = recommendations.stream().mapToLong(Recommendation::getRate).sum();
+              Update update =
+                  new Update()
+                      .inc("count", recommendations.size())
+                      .inc("rateSum", rateSum)
+                      .currentDate("lastUpdated");
+              Map<Integer, Long> perRate =
+                  recommendations.stream().collect(groupingBy(Recommendation::getRate, counting()));
+              perRate.forEach((rate, count) -> update.inc("rateHistogram." + rate, count));
+
+              return mongoTemplate.upsert(
+                  query(where("productId").is(entry.getKey())),
+                  update,
+                  RecommendationStatsEntity.class);
+            })
+        .then();
+  }
+
+  private Throwable handleBulkWriteError(List<Recommendation> body, MongoBulkWriteException ex) {
+    List<Recommendation> duplicates =
+        ex.getWriteErrors().stream()
+            .filter(error -> ErrorCategory.fromErrorCode(error.getCode()) == DUPLICATE_KEY)
+            .map(error -> body.get(error.getIndex()))
+            .toList();
+
+    if (duplicates.size() < ex.getWriteErrors().size()) {
+      return ex;
+    }
+    return duplicateKeyError(duplicates);
+  }
+
+  private InvalidInputException duplicateKeyError(List<Recommendation> duplicates) {
+    return new InvalidInputException(
+        "Duplicate key, "
+            + duplicates.stream()
+                .map(
+                    r ->
+                        "Product Id: "
+                            + r.getProductId()
+                            + ", Recommendation Id:"
+                            + r.getRecommendationId())
+                .collect(joining("; ")));
+  }
+
   @Override
   public Flux<Recommendation> getRecommendations(int productId) {
     if (productId < 1) {
@@ -59,8 +197,76 @@ public class RecommendationServiceImpl implements RecommendationService {
     }
 
     return repository
-        .findByProductId(productId)
-        .log(LOG.getName(), FINE)
+        .findApiFieldsByProductId(productId)
+        .transform(signalLog::flux)
+        .map(mapper::entityToApi)
+        .map(
+            e -> {
+              e.setServiceAddress(serviceUtil.getServiceAddress());
+              return e;
+            });
+  }
+
+  @Override
+  public Flux<Recommendation> getRecommendationsPage(int productId, Integer afterId, int limit) {
+    if (productId < 1) {
+      throw new InvalidInputException("Invalid productId: " + productId);
+    }
+    if (limit < 1 || limit > maxPageSize) {
+      throw new InvalidInputException("Invalid limit: " + limit + ", max is " + maxPageSize);
+    }
+    int after = (afterId == null) ? Integer.MIN_VALUE : afterId;
+
+    // A page is bounded by the limit, so it is collected to compute its ETag before it is sent
+    return repository
+        .findApiFieldsPage(productId, after, PageRequest.of(0, limit))
+        .transform(signalLog::flux)
+        .collectList()
+        .flatMapMany(
+            entities -> {
+              List<Recommendation> page = mapper.entityListToApiList(entities);
+              page.forEach(e -> e.setServiceAddress(serviceUtil.getServiceAddress()));
+              return ETags.conditional(
+                  page,
+                  ETags.weak(
+                      entities, RecommendationEntity::getId, RecommendationEntity::getVersion));
+            });
+  }
+
+  @Override
+  public Mono<RecommendationStats> getRecommendationStats(int productId) {
+    if (productId < 1) {
+      throw new InvalidInputException("Invalid productId: " + productId);
+    }
+
+    return statsRepository
+        .findById(productId)
+        .transform(signalLog::mono)
+        .map(mapper::statsEntityToApi)
+        .defaultIfEmpty(new RecommendationStats(productId, 0, 0, Map.of(), null, null))
+        .map(
+            e -> {
+              e.setServiceAddress(serviceUtil.getServiceAddress());
+              return e;
+            });
+  }
+
+  @Override
+  public Flux<Recommendation> getRecommendationsByProductIds(List<Integer> productIds) {
+    if (productIds.size() > maxProductIds) {
+      throw new InvalidInputException(
+          "Too many productIds: " + productIds.size() + ", max is " + maxProductIds);
+    }
+    productIds.forEach(
+        productId -> {
+          if (productId < 1) {
+            throw new InvalidInputException("Invalid productId: " + productId);
+          }
+        });
+
+    return repository
+        .findApiFieldsByProductIdIn(productIds)
+        .transform(signalLog::flux)
         .map(mapper::entityToApi)
         .map(
             e -> {
@@ -74,6 +280,10 @@ public class RecommendationServiceImpl implements RecommendationService {
     LOG.debug(
         "deleteRecommendations: tries to delete recommendations for the product with productId: {}",
         productId);
-    return repository.deleteAll(repository.findByProductId(productId));
+    return repository
+        .deleteByProductId(productId)
+        .doOnNext(count -> LOG.debug("deleteRecommendations: deleted {} recommendations", count))
+        .transform(signalLog::mono)
+        .then(statsRepository.deleteById(productId));
   }
 }
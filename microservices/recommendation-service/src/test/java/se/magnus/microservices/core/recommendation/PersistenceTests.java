@@ -63,6 +63,16 @@ class PersistenceTests extends MongoDbTestBase {
     assert Boolean.FALSE.equals(repository.existsById(savedEntity.getId()).block());
   }
 
+  @Test
+  void deleteByProductId() {
+    repository.save(new RecommendationEntity(1, 3, "a", 3, "c")).block();
+    repository.save(new RecommendationEntity(2, 1, "a", 3, "c")).block();
+
+    assertEquals(2, repository.deleteByProductId(1).block());
+    assertEquals(0, repository.findByProductId(1).count().block());
+    assertEquals(1, repository.count().block());
+  }
+
   @Test
   void getByProductId() {
     List<RecommendationEntity> entityList =
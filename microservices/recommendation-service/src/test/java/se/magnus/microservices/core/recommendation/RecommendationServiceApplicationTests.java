@@ -4,8 +4,12 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
 import static org.springframework.http.HttpStatus.*;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON;
 import static reactor.core.publisher.Mono.just;
 
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,6 +18,7 @@ import org.springframework.http.HttpStatus;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import se.magnus.api.core.recommendation.Recommendation;
 import se.magnus.microservices.core.recommendation.persistence.RecommendationRepository;
+import se.magnus.microservices.core.recommendation.persistence.RecommendationStatsRepository;
 
 @SpringBootTest(webEnvironment = RANDOM_PORT)
 class RecommendationServiceApplicationTests extends MongoDbTestBase {
@@ -22,9 +27,12 @@ class RecommendationServiceApplicationTests extends MongoDbTestBase {
 
   @Autowired private RecommendationRepository repository;
 
+  @Autowired private RecommendationStatsRepository statsRepository;
+
   @BeforeEach
   void setupDb() {
     repository.deleteAll().block();
+    statsRepository.deleteAll().block();
   }
 
   @Test
@@ -70,6 +78,35 @@ class RecommendationServiceApplicationTests extends MongoDbTestBase {
     assertEquals(1, repository.count().block());
   }
 
+  @Test
+  void createRecommendationsInBatch() {
+
+    int productId = 1;
+
+    postAndVerifyRecommendation(productId, 2, OK);
+
+    List<Recommendation> recommendations =
+        List.of(
+            new Recommendation(productId, 1, "a", 1, "c", null),
+            new Recommendation(productId, 2, "a", 2, "c", null),
+            new Recommendation(productId, 3, "a", 3, "c", null));
+
+    client
+        .post()
+        .uri("/recommendation/batch")
+        .bodyValue(recommendations)
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(UNPROCESSABLE_ENTITY)
+        .expectBody()
+        .jsonPath("$.message")
+        .isEqualTo("Duplicate key, Product Id: 1, Recommendation Id:2");
+
+    // All recommendations but the duplicate are created
+    assertEquals(3, repository.findByProductId(productId).toStream().toList().size());
+  }
+
   @Test
   void deleteRecommendations() {
 
@@ -85,6 +122,134 @@ class RecommendationServiceApplicationTests extends MongoDbTestBase {
     deleteAndVerifyRecommendationsByProductId(productId, OK);
   }
 
+  @Test
+  void getRecommendationsAsNdjson() {
+
+    int productId = 1;
+
+    postAndVerifyRecommendation(productId, 1, OK);
+    postAndVerifyRecommendation(productId, 2, OK);
+
+    List<Recommendation> recommendations =
+        client
+            .get()
+            .uri("/recommendation?productId=" + productId)
+            .accept(APPLICATION_NDJSON)
+            .exchange()
+            .expectStatus()
+            .isEqualTo(OK)
+            .expectHeader()
+            .contentType(APPLICATION_NDJSON)
+            .returnResult(Recommendation.class)
+            .getResponseBody()
+            .collectList()
+            .block();
+
+    assertEquals(2, recommendations.size());
+    assertEquals(2, recommendations.get(1).getRecommendationId());
+  }
+
+  @Test
+  void getRecommendationsPageByPage() {
+
+    int productId = 1;
+
+    postAndVerifyRecommendation(productId, 1, OK);
+    postAndVerifyRecommendation(productId, 2, OK);
+    postAndVerifyRecommendation(productId, 3, OK);
+
+    getAndVerifyRecommendationsByProductId("?productId=" + productId + "&limit=2", OK)
+        .jsonPath("$.length()")
+        .isEqualTo(2)
+        .jsonPath("$[1].recommendationId")
+        .isEqualTo(2);
+
+    getAndVerifyRecommendationsByProductId("?productId=" + productId + "&afterId=2&limit=2", OK)
+        .jsonPath("$.length()")
+        .isEqualTo(1)
+        .jsonPath("$[0].recommendationId")
+        .isEqualTo(3);
+
+    getAndVerifyRecommendationsByProductId(
+            "?productId=" + productId + "&limit=0", UNPROCESSABLE_ENTITY)
+        .jsonPath("$.message")
+        .isEqualTo("Invalid limit: 0, max is 1000");
+  }
+
+  @Test
+  void getRecommendationsPageNotModified() {
+
+    int productId = 1;
+
+    postAndVerifyRecommendation(productId, 1, OK);
+    postAndVerifyRecommendation(productId, 2, OK);
+
+    String uri = "/recommendation?productId=" + productId + "&limit=10";
+    String etag =
+        client
+            .get()
+            .uri(uri)
+            .accept(APPLICATION_JSON)
+            .exchange()
+            .expectStatus()
+            .isEqualTo(OK)
+            .returnResult(Recommendation.class)
+            .getResponseHeaders()
+            .getETag();
+
+    client
+        .get()
+        .uri(uri)
+        .accept(APPLICATION_JSON)
+        .ifNoneMatch(etag)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(NOT_MODIFIED);
+
+    // A new recommendation on the page changes its ETag
+    postAndVerifyRecommendation(productId, 3, OK);
+
+    client
+        .get()
+        .uri(uri)
+        .accept(APPLICATION_JSON)
+        .ifNoneMatch(etag)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(OK)
+        .expectBody()
+        .jsonPath("$.length()")
+        .isEqualTo(3);
+  }
+
+  @Test
+  void getRecommendationStats() {
+
+    int productId = 1;
+
+    getAndVerifyRecommendationStats(productId).jsonPath("$.count").isEqualTo(0);
+
+    postAndVerifyRecommendation(productId, 1, OK);
+    postAndVerifyRecommendation(productId, 2, OK);
+    postAndVerifyRecommendation(productId, 3, OK);
+
+    getAndVerifyRecommendationStats(productId)
+        .jsonPath("$.productId")
+        .isEqualTo(productId)
+        .jsonPath("$.count")
+        .isEqualTo(3)
+        .jsonPath("$.rateSum")
+        .isEqualTo(6)
+        .jsonPath("$.averageRate")
+        .isEqualTo(2.0)
+        .jsonPath("$.rateHistogram.3")
+        .isEqualTo(1);
+
+    deleteAndVerifyRecommendationsByProductId(productId, OK);
+
+    getAndVerifyRecommendationStats(productId).jsonPath("$.count").isEqualTo(0);
+  }
+
   @Test
   void getRecommendationsMissingParameter() {
 
@@ -125,6 +290,24 @@ class RecommendationServiceApplicationTests extends MongoDbTestBase {
         .isEqualTo("Invalid productId: " + productIdInvalid);
   }
 
+  @Test
+  void getRecommendationsWithTooManyProductIds() {
+
+    String productIds =
+        IntStream.rangeClosed(1, 201).mapToObj(String::valueOf).collect(Collectors.joining(","));
+
+    client
+        .get()
+        .uri("/recommendation/batch?productIds=" + productIds)
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(UNPROCESSABLE_ENTITY)
+        .expectBody()
+        .jsonPath("$.message")
+        .isEqualTo("Too many productIds: 201, max is 200");
+  }
+
   private WebTestClient.BodyContentSpec getAndVerifyRecommendationsByProductId(
       int productId, HttpStatus expectedStatus) {
     return getAndVerifyRecommendationsByProductId("?productId=" + productId, expectedStatus);
@@ -144,6 +327,19 @@ class RecommendationServiceApplicationTests extends MongoDbTestBase {
         .expectBody();
   }
 
+  private WebTestClient.BodyContentSpec getAndVerifyRecommendationStats(int productId) {
+    return client
+        .get()
+        .uri("/recommendation/stats?productId=" + productId)
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(OK)
+        .expectHeader()
+        .contentType(APPLICATION_JSON)
+        .expectBody();
+  }
+
   private WebTestClient.BodyContentSpec postAndVerifyRecommendation(
       int productId, int recommendationId, HttpStatus expectedStatus) {
     Recommendation recommendation =
@@ -0,0 +1,177 @@
+package se.magnus.microservices.core.review;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+/**
+ * Decorates the jdbcScheduler with metrics on tasks waiting to run, the time they waited and
+ * tasks rejected because the task queue was full. All meters are tagged with the scheduler mode.
+ *
+ * <p>Delayed and periodic tasks count as queued until their first run, and their wait is measured
+ * from the time the first run was due.
+ */
+class MeteredScheduler implements Scheduler {
+
+  private final Scheduler delegate;
+  private final AtomicInteger queued = new AtomicInteger();
+  private final Counter rejected;
+  private final Timer waitTime;
+
+  MeteredScheduler(Scheduler delegate, String mode, MeterRegistry registry) {
+    this.delegate = delegate;
+    Gauge.builder("jdbc.scheduler.queued", queued, AtomicInteger::get)
+        .description("Tasks submitted to the jdbcScheduler that have not started yet")
+        .tag("mode", mode)
+        .register(registry);
+    this.rejected =
+        Counter.builder("jdbc.scheduler.rejected")
+            .description("Tasks rejected by the jdbcScheduler")
+            .tag("mode", mode)
+            .register(registry);
+    this.waitTime =
+        Timer.builder("jdbc.scheduler.wait")
+            .description("Time from submitting a task to the jdbcScheduler until it starts")
+            .tag("mode", mode)
+            .publishPercentileHistogram()
+            .register(registry);
+  }
+
+  @Override
+  public Disposable schedule(Runnable task) {
+    return submit(task, 0, delegate::schedule);
+  }
+
+  @Override
+  public Disposable schedule(Runnable task, long delay, TimeUnit unit) {
+    return submit(task, unit.toNanos(delay), metered -> delegate.schedule(metered, delay, unit));
+  }
+
+  @Override
+  public Disposable schedulePeriodically(
+      Runnable task, long initialDelay, long period, TimeUnit unit) {
+    return submit(
+        task,
+        unit.toNanos(initialDelay),
+        metered -> delegate.schedulePeriodically(metered, initialDelay, period, unit));
+  }
+
+  @Override
+  public long now(TimeUnit unit) {
+    return delegate.now(unit);
+  }
+
+  @Override
+  public Worker createWorker() {
+    return new MeteredWorker(delegate.createWorker());
+  }
+
+  @Override
+  public void start() {
+    delegate.start();
+  }
+
+  @Override
+  public void dispose() {
+    delegate.dispose();
+  }
+
+  @Override
+  public Mono<Void> disposeGracefully() {
+    return delegate.disposeGracefully();
+  }
+
+  @Override
+  public boolean isDisposed() {
+    return delegate.isDisposed();
+  }
+
+  private Disposable submit(
+      Runnable task, long delayNanos, Function<Runnable, Disposable> scheduler) {
+    long due = System.nanoTime() + delayNanos;
+    AtomicBoolean dequeued = new AtomicBoolean();
+    queued.incrementAndGet();
+
+    Runnable meteredTask =
+        () -> {
+          if (dequeued.compareAndSet(false, true)) {
+            queued.decrementAndGet();
+            waitTime.record(Math.max(0, System.nanoTime() - due), NANOSECONDS);
+          }
+          task.run();
+        };
+
+    Disposable scheduled;
+    try {
+      scheduled = scheduler.apply(meteredTask);
+    } catch (RejectedExecutionException ree) {
+      queued.decrementAndGet();
+      rejected.increment();
+      throw ree;
+    }
+
+    return new Disposable() {
+      @Override
+      public void dispose() {
+        if (dequeued.compareAndSet(false, true)) {
+          queued.decrementAndGet();
+        }
+        scheduled.dispose();
+      }
+
+      @Override
+      public boolean isDisposed() {
+        return scheduled.isDisposed();
+      }
+    };
+  }
+
+  private final class MeteredWorker implements Worker {
+
+    private final Worker delegate;
+
+    private MeteredWorker(Worker delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public Disposable schedule(Runnable task) {
+      return submit(task, 0, delegate::schedule);
+    }
+
+    @Override
+    public Disposable schedule(Runnable task, long delay, TimeUnit unit) {
+      return submit(task, unit.toNanos(delay), metered -> delegate.schedule(metered, delay, unit));
+    }
+
+    @Override
+    public Disposable schedulePeriodically(
+        Runnable task, long initialDelay, long period, TimeUnit unit) {
+      return submit(
+          task,
+          unit.toNanos(initialDelay),
+          metered -> delegate.schedulePeriodically(metered, initialDelay, period, unit));
+    }
+
+    @Override
+    public void dispose() {
+      delegate.dispose();
+    }
+
+    @Override
+    public boolean isDisposed() {
+      return delegate.isDisposed();
+    }
+  }
+}
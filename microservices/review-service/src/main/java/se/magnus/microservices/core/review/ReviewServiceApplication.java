@@ -1,7 +1,10 @@
 package se.magnus.microservices.core.review;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import io.swagger.v3.oas.models.OpenAPI;
 import io.swagger.v3.oas.models.info.Info;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -22,6 +25,7 @@ public class ReviewServiceApplication {
 
   private final Integer threadPoolSize;
   private final Integer taskQueueSize;
+  private final String schedulerMode;
 
   @Bean
   public OpenAPI getOpenApiDocumentation() {
@@ -31,15 +35,44 @@ public class ReviewServiceApplication {
   @Autowired
   public ReviewServiceApplication(
       @Value("${app.threadPoolSize:10}") Integer threadPoolSize,
-      @Value("${app.taskQueueSize:100}") Integer taskQueueSize) {
+      @Value("${app.taskQueueSize:100}") Integer taskQueueSize,
+      @Value("${app.schedulerMode:bounded-elastic}") String schedulerMode) {
     this.threadPoolSize = threadPoolSize;
     this.taskQueueSize = taskQueueSize;
+    this.schedulerMode = schedulerMode;
   }
 
+  /**
+   * Runs the blocking JPA calls. With app.schedulerMode=virtual-threads every call gets its own
+   * virtual thread, so concurrency is only limited by the Hikari connection pool.
+   */
   @Bean
-  public Scheduler jdbcScheduler() {
+  public Scheduler jdbcScheduler(MeterRegistry registry) {
+    if ("virtual-threads".equals(schedulerMode)) {
+      ExecutorService executor = newVirtualThreadPerTaskExecutor();
+      if (executor != null) {
+        LOG.info("Creates a jdbcScheduler running on virtual threads");
+        return new MeteredScheduler(
+            Schedulers.fromExecutorService(executor, "jdbc-virtual"), schedulerMode, registry);
+      }
+      LOG.warn("Virtual threads require Java 21, falls back to a bounded elastic jdbcScheduler");
+    }
+
     LOG.info("Creates a jdbcScheduler with thread pool size = {}", threadPoolSize);
-    return Schedulers.newBoundedElastic(threadPoolSize, taskQueueSize, "jdbc-pool");
+    return new MeteredScheduler(
+        Schedulers.newBoundedElastic(threadPoolSize, taskQueueSize, "jdbc-pool"),
+        "bounded-elastic",
+        registry);
+  }
+
+  // Looked up by reflection since the service is still compiled for Java 17
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
   }
 
   public static void main(String[] args) {
@@ -0,0 +1,91 @@
+package se.magnus.microservices.core.review.persistence;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
+import org.springframework.data.relational.core.mapping.Table;
+
+/**
+ * Maps the same "reviews" table as {@link ReviewEntity}, used when the service runs with the
+ * "r2dbc" profile. The table is created by schema-r2dbc.sql in that mode. The id is set before the
+ * entity is saved, from the same sequence as ReviewEntity uses.
+ */
+@Table("reviews")
+public class R2dbcReviewEntity {
+
+  @Id private Integer id;
+
+  @Version private Integer version;
+
+  private int productId;
+  private int reviewId;
+  private String author;
+  private String subject;
+  private String content;
+
+  public R2dbcReviewEntity() {}
+
+  public R2dbcReviewEntity(
+      int productId, int reviewId, String author, String subject, String content) {
+    this.productId = productId;
+    this.reviewId = reviewId;
+    this.author = author;
+    this.subject = subject;
+    this.content = content;
+  }
+
+  public Integer getId() {
+    return id;
+  }
+
+  public void setId(Integer id) {
+    this.id = id;
+  }
+
+  public Integer getVersion() {
+    return version;
+  }
+
+  public void setVersion(Integer version) {
+    this.version = version;
+  }
+
+  public int getProductId() {
+    return productId;
+  }
+
+  public void setProductId(int productId) {
+    this.productId = productId;
+  }
+
+  public int getReviewId() {
+    return reviewId;
+  }
+
+  public void setReviewId(int reviewId) {
+    this.reviewId = reviewId;
+  }
+
+  public String getAuthor() {
+    return author;
+  }
+
+  public void setAuthor(String author) {
+    this.author = author;
+  }
+
+  public String getSubject() {
+    return subject;
+  }
+
+  public void setSubject(String subject) {
+    this.subject = subject;
+  }
+
+  public String getContent() {
+    return content;
+  }
+
+  public void setContent(String content) {
+    this.content = content;
+  }
+}
@@ -0,0 +1,34 @@
+package se.magnus.microservices.core.review.persistence;
+
+import java.util.Collection;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.r2dbc.repository.Modifying;
+import org.springframework.data.r2dbc.repository.Query;
+import org.springframework.data.r2dbc.repository.R2dbcRepository;
+import org.springframework.data.repository.query.Param;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+public interface R2dbcReviewRepository extends R2dbcRepository<R2dbcReviewEntity, Integer> {
+
+  Flux<R2dbcReviewEntity> findByProductId(int productId);
+
+  /** Keyset pagination, served by the unique (product_id, review_id) index. */
+  Flux<R2dbcReviewEntity> findByProductIdAndReviewIdGreaterThanOrderByReviewId(
+      int productId, int afterId, Pageable pageable);
+
+  Flux<R2dbcReviewEntity> findByProductIdIn(Collection<Integer> productIds);
+
+  @Modifying
+  @Query("DELETE FROM reviews WHERE product_id = :productId")
+  Mono<Integer> deleteByProductId(@Param("productId") int productId);
+
+  /** The value of the id sequence that ReviewEntity shares with this mode. */
+  @Query("SELECT next_val FROM review_entity_seq")
+  Mono<Long> findNextIdValue();
+
+  /** Moves the id sequence on, if no one else did since current was read. */
+  @Modifying
+  @Query("UPDATE review_entity_seq SET next_val = :next WHERE next_val = :current")
+  Mono<Integer> updateNextIdValue(@Param("current") long current, @Param("next") long next);
+}
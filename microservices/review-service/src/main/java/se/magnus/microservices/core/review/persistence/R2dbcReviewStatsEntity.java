@@ -0,0 +1,45 @@
+package se.magnus.microservices.core.review.persistence;
+
+import java.time.Instant;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.relational.core.mapping.Table;
+
+/**
+ * Maps the same "review_stats" table as {@link ReviewStatsEntity}, used when the service runs with
+ * the "r2dbc" profile. Only read, the updates are done by {@link R2dbcReviewStatsRepository}.
+ */
+@Table("review_stats")
+public class R2dbcReviewStatsEntity {
+
+  @Id private Integer productId;
+
+  private long reviewCount;
+
+  private Instant lastUpdated;
+
+  public R2dbcReviewStatsEntity() {}
+
+  public Integer getProductId() {
+    return productId;
+  }
+
+  public void setProductId(Integer productId) {
+    this.productId = productId;
+  }
+
+  public long getReviewCount() {
+    return reviewCount;
+  }
+
+  public void setReviewCount(long reviewCount) {
+    this.reviewCount = reviewCount;
+  }
+
+  public Instant getLastUpdated() {
+    return lastUpdated;
+  }
+
+  public void setLastUpdated(Instant lastUpdated) {
+    this.lastUpdated = lastUpdated;
+  }
+}
@@ -0,0 +1,24 @@
+package se.magnus.microservices.core.review.persistence;
+
+import org.springframework.data.r2dbc.repository.Modifying;
+import org.springframework.data.r2dbc.repository.Query;
+import org.springframework.data.r2dbc.repository.R2dbcRepository;
+import org.springframework.data.repository.query.Param;
+import reactor.core.publisher.Mono;
+
+public interface R2dbcReviewStatsRepository
+    extends R2dbcRepository<R2dbcReviewStatsEntity, Integer> {
+
+  /** Adds to the review count of a product, its row is created by the first review. */
+  @Modifying
+  @Query(
+      "INSERT INTO review_stats (product_id, review_count, last_updated)"
+          + " VALUES (:productId, :count, CURRENT_TIMESTAMP)"
+          + " ON DUPLICATE KEY UPDATE"
+          + " review_count = review_count + :count, last_updated = CURRENT_TIMESTAMP")
+  Mono<Integer> incrementReviewCount(@Param("productId") int productId, @Param("count") long count);
+
+  @Modifying
+  @Query("DELETE FROM review_stats WHERE product_id = :productId")
+  Mono<Integer> deleteByProductId(@Param("productId") int productId);
+}
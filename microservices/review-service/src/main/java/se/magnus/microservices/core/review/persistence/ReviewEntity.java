@@ -1,6 +1,8 @@
 package se.magnus.microservices.core.review.persistence;
 
 import jakarta.persistence.*;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 
 @Entity
 @Table(
@@ -10,7 +12,24 @@ import jakarta.persistence.*;
     })
 public class ReviewEntity {
 
-  @Id @GeneratedValue private int id;
+  /** The number of ids that one increment of the review_entity_seq table reserves. */
+  public static final int ID_BLOCK_SIZE = 50;
+
+  // A pooled sequence, not IDENTITY, lets Hibernate assign ids up front and batch the inserts. It
+  // is kept in the review_entity_seq table also on databases with sequences, since the R2DBC mode
+  // reserves its ids from the same table, see ReviewIdSequence.
+  @Id
+  @GeneratedValue(generator = "review_seq")
+  @GenericGenerator(
+      name = "review_seq",
+      strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator",
+      parameters = {
+        @Parameter(name = "sequence_name", value = "review_entity_seq"),
+        @Parameter(name = "force_table_use", value = "true"),
+        @Parameter(name = "increment_size", value = "" + ID_BLOCK_SIZE),
+        @Parameter(name = "optimizer", value = "pooled")
+      })
+  private int id;
 
   @Version private int version;
 
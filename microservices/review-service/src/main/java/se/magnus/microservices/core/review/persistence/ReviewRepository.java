@@ -1,11 +1,30 @@
 package se.magnus.microservices.core.review.persistence;
 
+import java.util.Collection;
 import java.util.List;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.transaction.annotation.Transactional;
 
 public interface ReviewRepository extends CrudRepository<ReviewEntity, Integer> {
 
   @Transactional(readOnly = true)
   List<ReviewEntity> findByProductId(int productId);
+
+  /** Keyset pagination, served by the unique (productId, reviewId) index. */
+  @Transactional(readOnly = true)
+  List<ReviewEntity> findByProductIdAndReviewIdGreaterThanOrderByReviewId(
+      int productId, int afterId, Pageable pageable);
+
+  @Transactional(readOnly = true)
+  List<ReviewEntity> findByProductIdIn(Collection<Integer> productIds);
+
+  /** Deletes the reviews of a product with a single statement, returns the number deleted. */
+  @Modifying
+  @Transactional
+  @Query("DELETE FROM ReviewEntity r WHERE r.productId = :productId")
+  int deleteByProductId(@Param("productId") int productId);
 }
@@ -0,0 +1,45 @@
+package se.magnus.microservices.core.review.persistence;
+
+import jakarta.persistence.*;
+import java.time.Instant;
+
+/**
+ * Statistics of the reviews of one product. Updated in the same transaction as the reviews it
+ * counts, see {@link ReviewStatsRepository}.
+ */
+@Entity
+@Table(name = "review_stats")
+public class ReviewStatsEntity {
+
+  @Id private int productId;
+
+  private long reviewCount;
+
+  private Instant lastUpdated;
+
+  public ReviewStatsEntity() {}
+
+  public int getProductId() {
+    return productId;
+  }
+
+  public void setProductId(int productId) {
+    this.productId = productId;
+  }
+
+  public long getReviewCount() {
+    return reviewCount;
+  }
+
+  public void setReviewCount(long reviewCount) {
+    this.reviewCount = reviewCount;
+  }
+
+  public Instant getLastUpdated() {
+    return lastUpdated;
+  }
+
+  public void setLastUpdated(Instant lastUpdated) {
+    this.lastUpdated = lastUpdated;
+  }
+}
@@ -0,0 +1,28 @@
+package se.magnus.microservices.core.review.persistence;
+
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+/** The updates join the transaction of the caller, so they commit together with the reviews. */
+public interface ReviewStatsRepository extends CrudRepository<ReviewStatsEntity, Integer> {
+
+  /** Adds to the review count of a product, its row is created by the first review. */
+  @Modifying
+  @Transactional
+  @Query(
+      nativeQuery = true,
+      value =
+          "INSERT INTO review_stats (product_id, review_count, last_updated)"
+              + " VALUES (:productId, :count, CURRENT_TIMESTAMP)"
+              + " ON DUPLICATE KEY UPDATE"
+              + " review_count = review_count + :count, last_updated = CURRENT_TIMESTAMP")
+  int incrementReviewCount(@Param("productId") int productId, @Param("count") long count);
+
+  @Modifying
+  @Transactional
+  @Query("DELETE FROM ReviewStatsEntity s WHERE s.productId = :productId")
+  int deleteByProductId(@Param("productId") int productId);
+}
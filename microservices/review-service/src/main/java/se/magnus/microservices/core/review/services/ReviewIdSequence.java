@@ -0,0 +1,70 @@
+package se.magnus.microservices.core.review.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import se.magnus.microservices.core.review.persistence.R2dbcReviewRepository;
+import se.magnus.microservices.core.review.persistence.ReviewEntity;
+
+/**
+ * Gives out the ids of new reviews in R2DBC mode, from the review_entity_seq table that the pooled
+ * sequence of {@link ReviewEntity} uses in JPA mode, so that both modes can write to the same
+ * reviews table.
+ *
+ * <p>As with Hibernate's pooled optimizer, moving next_val on from v to v + blockSize reserves the
+ * ids from v - blockSize + 1 up to v. The move is a compare-and-set that is retried if another
+ * instance moved it first.
+ *
+ * <p>The move must be committed on its own, not in the transaction of the review, since a rolled
+ * back move would give out the ids of the block again.
+ */
+public class ReviewIdSequence {
+  private static final Logger LOG = LoggerFactory.getLogger(ReviewIdSequence.class);
+
+  private static final int MAX_RETRIES = 100;
+
+  private final R2dbcReviewRepository repository;
+  private final int blockSize;
+
+  // The next id to give out and the last id of the current block, guarded by this
+  private long nextId = 1;
+  private long lastId = 0;
+
+  public ReviewIdSequence(R2dbcReviewRepository repository, int blockSize) {
+    this.repository = repository;
+    this.blockSize = blockSize;
+  }
+
+  public Mono<Integer> nextId() {
+    return Mono.defer(
+        () -> {
+          Integer id = takeId();
+          return (id != null) ? Mono.just(id) : reserveBlock().map(this::takeIdOfNewBlock);
+        });
+  }
+
+  private synchronized Integer takeId() {
+    return (nextId <= lastId) ? Math.toIntExact(nextId++) : null;
+  }
+
+  // Concurrent callers may each reserve a block, the rest of a replaced block is left unused
+  private synchronized int takeIdOfNewBlock(long last) {
+    LOG.debug("Reserved the review ids up to {}", last);
+    nextId = Math.max(1, last - blockSize + 1);
+    lastId = last;
+    return Math.toIntExact(nextId++);
+  }
+
+  private Mono<Long> reserveBlock() {
+    return repository
+        .findNextIdValue()
+        .switchIfEmpty(Mono.error(() -> new IllegalStateException("review_entity_seq is empty")))
+        .flatMap(
+            current ->
+                repository
+                    .updateNextIdValue(current, current + blockSize)
+                    .filter(updated -> updated == 1)
+                    .map(updated -> current))
+        .repeatWhenEmpty(MAX_RETRIES, retries -> retries);
+  }
+}
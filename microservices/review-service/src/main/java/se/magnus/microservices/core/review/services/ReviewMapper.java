@@ -5,7 +5,11 @@ import org.mapstruct.Mapper;
 import org.mapstruct.Mapping;
 import org.mapstruct.Mappings;
 import se.magnus.api.core.review.Review;
+import se.magnus.api.core.review.ReviewStats;
+import se.magnus.microservices.core.review.persistence.R2dbcReviewEntity;
+import se.magnus.microservices.core.review.persistence.R2dbcReviewStatsEntity;
 import se.magnus.microservices.core.review.persistence.ReviewEntity;
+import se.magnus.microservices.core.review.persistence.ReviewStatsEntity;
 
 @Mapper(componentModel = "spring")
 public interface ReviewMapper {
@@ -19,4 +23,22 @@ public interface ReviewMapper {
   List<Review> entityListToApiList(List<ReviewEntity> entity);
 
   List<ReviewEntity> apiListToEntityList(List<Review> api);
+
+  @Mappings({@Mapping(target = "serviceAddress", ignore = true)})
+  Review r2dbcEntityToApi(R2dbcReviewEntity entity);
+
+  @Mappings({@Mapping(target = "id", ignore = true), @Mapping(target = "version", ignore = true)})
+  R2dbcReviewEntity apiToR2dbcEntity(Review api);
+
+  @Mappings({
+    @Mapping(target = "count", source = "entity.reviewCount"),
+    @Mapping(target = "serviceAddress", ignore = true)
+  })
+  ReviewStats statsEntityToApi(ReviewStatsEntity entity);
+
+  @Mappings({
+    @Mapping(target = "count", source = "entity.reviewCount"),
+    @Mapping(target = "serviceAddress", ignore = true)
+  })
+  ReviewStats r2dbcStatsEntityToApi(R2dbcReviewStatsEntity entity);
 }
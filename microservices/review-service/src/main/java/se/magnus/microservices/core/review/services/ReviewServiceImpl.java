@@ -1,23 +1,42 @@
 package se.magnus.microservices.core.review.services;
 
-import static java.util.logging.Level.FINE;
+import static java.util.stream.Collectors.counting;
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.joining;
 
+import jakarta.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.RestController;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Scheduler;
 import se.magnus.api.core.review.Review;
 import se.magnus.api.core.review.ReviewService;
+import se.magnus.api.core.review.ReviewStats;
 import se.magnus.api.exceptions.InvalidInputException;
+import se.magnus.microservices.core.review.persistence.R2dbcReviewEntity;
+import se.magnus.microservices.core.review.persistence.R2dbcReviewRepository;
+import se.magnus.microservices.core.review.persistence.R2dbcReviewStatsRepository;
 import se.magnus.microservices.core.review.persistence.ReviewEntity;
 import se.magnus.microservices.core.review.persistence.ReviewRepository;
+import se.magnus.microservices.core.review.persistence.ReviewStatsRepository;
+import se.magnus.util.http.ETags;
 import se.magnus.util.http.ServiceUtil;
+import se.magnus.util.reactor.SignalLog;
 
 @RestController
 public class ReviewServiceImpl implements ReviewService {
@@ -25,63 +44,355 @@ public class ReviewServiceImpl implements ReviewService {
 
   private final Scheduler jobScheduler;
 
+  // Only one set of repositories is available, the R2DBC one if the "r2dbc" profile is active
   private final ReviewRepository repository;
 
+  private final ReviewStatsRepository statsRepository;
+
+  private final TransactionTemplate transactionTemplate;
+
+  private final R2dbcReviewRepository r2dbcRepository;
+
+  private final R2dbcReviewStatsRepository r2dbcStatsRepository;
+
+  private final TransactionalOperator transactionalOperator;
+
+  // Only set in R2DBC mode
+  private final ReviewIdSequence r2dbcIds;
+
   private final ReviewMapper mapper;
 
   private final ServiceUtil serviceUtil;
 
+  private final int maxPageSize;
+
+  private final int maxProductIds;
+
+  private final SignalLog signalLog;
+
+  // Only set in JDBC mode with app.review-write-behind.enabled=true
+  private final ReviewWriteBehind writeBehind;
+
   @Autowired
   public ReviewServiceImpl(
       @Qualifier("jdbcScheduler") Scheduler jobScheduler,
-      ReviewRepository repository,
+      ObjectProvider<ReviewRepository> repository,
+      ObjectProvider<ReviewStatsRepository> statsRepository,
+      ObjectProvider<TransactionTemplate> transactionTemplate,
+      ObjectProvider<R2dbcReviewRepository> r2dbcRepository,
+      ObjectProvider<R2dbcReviewStatsRepository> r2dbcStatsRepository,
+      ObjectProvider<TransactionalOperator> transactionalOperator,
       ReviewMapper mapper,
-      ServiceUtil serviceUtil) {
+      ServiceUtil serviceUtil,
+      @Value("${app.max-page-size:1000}") int maxPageSize,
+      @Value("${app.max-product-ids:200}") int maxProductIds,
+      @Value("${app.review-write-behind.enabled:false}") boolean writeBehindEnabled,
+      @Value("${app.review-write-behind.max-batch-size:50}") int writeBehindMaxBatchSize,
+      @Value("${app.review-write-behind.max-wait:5ms}") Duration writeBehindMaxWait,
+      @Value("${app.review-write-behind.max-pending:10000}") int writeBehindMaxPending,
+      @Value("${app.review-write-behind.shutdown-timeout:10s}") Duration writeBehindShutdownTimeout,
+      @Value("${app.reactor-log.enabled:true}") boolean reactorLogEnabled) {
     this.jobScheduler = jobScheduler;
-    this.repository = repository;
+    this.repository = repository.getIfAvailable();
+    this.statsRepository = statsRepository.getIfAvailable();
+    this.transactionTemplate = transactionTemplate.getIfAvailable();
+    this.r2dbcRepository = r2dbcRepository.getIfAvailable();
+    this.r2dbcStatsRepository = r2dbcStatsRepository.getIfAvailable();
+    this.transactionalOperator = transactionalOperator.getIfAvailable();
+    this.r2dbcIds =
+        (this.r2dbcRepository != null)
+            ? new ReviewIdSequence(this.r2dbcRepository, ReviewEntity.ID_BLOCK_SIZE)
+            : null;
     this.mapper = mapper;
     this.serviceUtil = serviceUtil;
+    this.maxPageSize = maxPageSize;
+    this.maxProductIds = maxProductIds;
+    this.signalLog = new SignalLog(LOG, reactorLogEnabled);
+    LOG.info("Uses {} persistence", (this.r2dbcRepository != null) ? "R2DBC" : "JDBC");
+    this.writeBehind =
+        (writeBehindEnabled && this.r2dbcRepository == null)
+            ? new ReviewWriteBehind(
+                this::saveReviews,
+                this::internalCreateReview,
+                jobScheduler,
+                writeBehindMaxBatchSize,
+                writeBehindMaxWait,
+                writeBehindMaxPending,
+                writeBehindShutdownTimeout)
+            : null;
+  }
+
+  @PreDestroy
+  void stop() {
+    if (writeBehind != null) {
+      writeBehind.dispose();
+    }
   }
 
   @Override
   public Mono<Review> createReview(Review body) {
+    if (r2dbcRepository != null) {
+      return r2dbcCreateReview(body)
+          .transform(signalLog::mono)
+          .onErrorMap(DataIntegrityViolationException.class, ex -> duplicateKeyError(body));
+    }
+
+    if (writeBehind != null) {
+      return writeBehind.submit(body).transform(signalLog::mono);
+    }
+
     return Mono.fromCallable(() -> internalCreateReview(body))
-        .log(LOG.getName(), FINE)
+        .transform(signalLog::mono)
         .subscribeOn(jobScheduler);
   }
 
+  // The review and the update of its product's statistics are saved in one transaction. The id is
+  // taken before it, see ReviewIdSequence.
+  private Mono<Review> r2dbcCreateReview(Review body) {
+    return r2dbcIds
+        .nextId()
+        .flatMap(
+            id -> {
+              R2dbcReviewEntity entity = mapper.apiToR2dbcEntity(body);
+              entity.setId(id);
+              return r2dbcRepository
+                  .save(entity)
+                  .flatMap(
+                      newEntity ->
+                          r2dbcStatsRepository
+                              .incrementReviewCount(body.getProductId(), 1)
+                              .thenReturn(newEntity))
+                  .as(transactionalOperator::transactional);
+            })
+        .map(mapper::r2dbcEntityToApi);
+  }
+
   private Review internalCreateReview(Review body) {
     try {
       ReviewEntity entity = mapper.apiToEntity(body);
-      ReviewEntity newEntity = repository.save(entity);
+      ReviewEntity newEntity =
+          transactionTemplate.execute(
+              status -> {
+                ReviewEntity saved = repository.save(entity);
+                statsRepository.incrementReviewCount(body.getProductId(), 1);
+                return saved;
+              });
 
       LOG.debug(
           "createReview: created a review entity: {}/{}", body.getProductId(), body.getReviewId());
       return mapper.entityToApi(newEntity);
 
     } catch (DataIntegrityViolationException dive) {
-      throw new InvalidInputException(
-          "Duplicate key, Product Id: "
-              + body.getProductId()
-              + ", Review Id:"
-              + body.getReviewId());
+      throw duplicateKeyError(body);
     }
   }
 
+  private InvalidInputException duplicateKeyError(Review body) {
+    return duplicateKeyError(List.of(body));
+  }
+
+  private InvalidInputException duplicateKeyError(List<Review> duplicates) {
+    return new InvalidInputException(
+        "Duplicate key, "
+            + duplicates.stream()
+                .map(r -> "Product Id: " + r.getProductId() + ", Review Id:" + r.getReviewId())
+                .collect(joining("; ")));
+  }
+
+  @Override
+  public Flux<Review> createReviews(List<Review> body) {
+    if (r2dbcRepository != null) {
+      List<Review> duplicates = Collections.synchronizedList(new ArrayList<>());
+      return Flux.fromIterable(body)
+          .concatMap(
+              review ->
+                  r2dbcCreateReview(review)
+                      .onErrorResume(
+                          DataIntegrityViolationException.class,
+                          ex -> {
+                            duplicates.add(review);
+                            return Mono.empty();
+                          }))
+          .collectList()
+          .flatMapMany(
+              created ->
+                  duplicates.isEmpty()
+                      ? Flux.fromIterable(created)
+                      : Flux.error(duplicateKeyError(duplicates)))
+          .transform(signalLog::flux);
+    }
+
+    return Mono.fromCallable(() -> internalCreateReviews(body))
+        .flatMapMany(Flux::fromIterable)
+        .transform(signalLog::flux)
+        .subscribeOn(jobScheduler);
+  }
+
+  private List<Review> internalCreateReviews(List<Review> body) {
+    try {
+      return saveReviews(body);
+
+    } catch (DataIntegrityViolationException dive) {
+      // The batch was rolled back, create the reviews one by one to find the duplicates
+      LOG.debug("createReviews: batch failed on a duplicate key, retries one review at a time");
+      List<Review> created = new ArrayList<>(body.size());
+      List<Review> duplicates = new ArrayList<>();
+      for (Review review : body) {
+        try {
+          created.add(internalCreateReview(review));
+        } catch (InvalidInputException iie) {
+          duplicates.add(review);
+        }
+      }
+      if (duplicates.isEmpty()) {
+        return created;
+      }
+      throw duplicateKeyError(duplicates);
+    }
+  }
+
+  // One transaction, the inserts are sent in JDBC batches when it commits
+  private List<Review> saveReviews(List<Review> body) {
+    List<ReviewEntity> newEntities = new ArrayList<>(body.size());
+    transactionTemplate.executeWithoutResult(
+        status -> {
+          repository.saveAll(mapper.apiListToEntityList(body)).forEach(newEntities::add);
+          Map<Integer, Long> countPerProduct =
+              body.stream().collect(groupingBy(Review::getProductId, counting()));
+          countPerProduct.forEach(statsRepository::incrementReviewCount);
+        });
+
+    LOG.debug("createReviews: created {} review entities", newEntities.size());
+    return mapper.entityListToApiList(newEntities);
+  }
+
   @Override
   public Flux<Review> getReviews(int productId) {
     if (productId < 1) {
       throw new InvalidInputException("Invalid productId: " + productId);
     }
 
-    return Mono.fromCallable(() -> internalGetReviews(productId))
+    if (r2dbcRepository != null) {
+      return toApi(r2dbcRepository.findByProductId(productId));
+    }
+
+    // Reads one page at a time, so all reviews of a popular product are never in memory at once
+    return readPage(productId, Integer.MIN_VALUE, maxPageSize)
+        .expand(
+            page ->
+                (page.size() < maxPageSize)
+                    ? Mono.empty()
+                    : readPage(productId, page.get(page.size() - 1).getReviewId(), maxPageSize))
+        .flatMapIterable(page -> page)
+        .transform(signalLog::flux);
+  }
+
+  @Override
+  public Flux<Review> getReviewsPage(int productId, Integer afterId, int limit) {
+    if (productId < 1) {
+      throw new InvalidInputException("Invalid productId: " + productId);
+    }
+    if (limit < 1 || limit > maxPageSize) {
+      throw new InvalidInputException("Invalid limit: " + limit + ", max is " + maxPageSize);
+    }
+    int after = (afterId == null) ? Integer.MIN_VALUE : afterId;
+
+    // A page is bounded by the limit, so it is collected to compute its ETag before it is sent
+    if (r2dbcRepository != null) {
+      return r2dbcRepository
+          .findByProductIdAndReviewIdGreaterThanOrderByReviewId(
+              productId, after, PageRequest.of(0, limit))
+          .transform(signalLog::flux)
+          .collectList()
+          .flatMapMany(
+              entities -> {
+                List<Review> page = entities.stream().map(mapper::r2dbcEntityToApi).toList();
+                page.forEach(e -> e.setServiceAddress(serviceUtil.getServiceAddress()));
+                return ETags.conditional(
+                    page,
+                    ETags.weak(entities, R2dbcReviewEntity::getId, R2dbcReviewEntity::getVersion));
+              });
+    }
+
+    return readEntityPage(productId, after, limit)
+        .flatMapMany(
+            entities ->
+                ETags.conditional(
+                    toApiList(entities),
+                    ETags.weak(entities, ReviewEntity::getId, ReviewEntity::getVersion)))
+        .transform(signalLog::flux);
+  }
+
+  private Mono<List<Review>> readPage(int productId, int afterId, int limit) {
+    return readEntityPage(productId, afterId, limit).map(this::toApiList);
+  }
+
+  private Mono<List<ReviewEntity>> readEntityPage(int productId, int afterId, int limit) {
+    return Mono.fromCallable(
+            () ->
+                repository.findByProductIdAndReviewIdGreaterThanOrderByReviewId(
+                    productId, afterId, PageRequest.of(0, limit)))
+        .subscribeOn(jobScheduler);
+  }
+
+  private List<Review> toApiList(List<ReviewEntity> entityList) {
+    List<Review> list = mapper.entityListToApiList(entityList);
+    list.forEach(e -> e.setServiceAddress(serviceUtil.getServiceAddress()));
+
+    LOG.debug("Response size: {}", list.size());
+
+    return list;
+  }
+
+  @Override
+  public Mono<ReviewStats> getReviewStats(int productId) {
+    if (productId < 1) {
+      throw new InvalidInputException("Invalid productId: " + productId);
+    }
+
+    Mono<ReviewStats> stats =
+        (r2dbcRepository != null)
+            ? r2dbcStatsRepository.findById(productId).map(mapper::r2dbcStatsEntityToApi)
+            : Mono.fromCallable(
+                    () -> statsRepository.findById(productId).map(mapper::statsEntityToApi))
+                .flatMap(Mono::justOrEmpty)
+                .subscribeOn(jobScheduler);
+
+    return stats
+        .defaultIfEmpty(new ReviewStats(productId, 0, null, null))
+        .map(
+            e -> {
+              e.setServiceAddress(serviceUtil.getServiceAddress());
+              return e;
+            })
+        .transform(signalLog::mono);
+  }
+
+  @Override
+  public Flux<Review> getReviewsByProductIds(List<Integer> productIds) {
+    if (productIds.size() > maxProductIds) {
+      throw new InvalidInputException(
+          "Too many productIds: " + productIds.size() + ", max is " + maxProductIds);
+    }
+    productIds.forEach(
+        productId -> {
+          if (productId < 1) {
+            throw new InvalidInputException("Invalid productId: " + productId);
+          }
+        });
+
+    if (r2dbcRepository != null) {
+      return toApi(r2dbcRepository.findByProductIdIn(productIds));
+    }
+
+    return Mono.fromCallable(() -> internalGetReviews(productIds))
         .flatMapMany(Flux::fromIterable)
-        .log(LOG.getName(), FINE)
+        .transform(signalLog::flux)
         .subscribeOn(jobScheduler);
   }
 
-  private List<Review> internalGetReviews(int productId) {
-    List<ReviewEntity> entityList = repository.findByProductId(productId);
+  private List<Review> internalGetReviews(List<Integer> productIds) {
+    List<ReviewEntity> entityList = repository.findByProductIdIn(productIds);
     List<Review> list = mapper.entityListToApiList(entityList);
     list.forEach(e -> e.setServiceAddress(serviceUtil.getServiceAddress()));
 
@@ -90,17 +401,47 @@ public class ReviewServiceImpl implements ReviewService {
     return list;
   }
 
+  private Flux<Review> toApi(Flux<R2dbcReviewEntity> entities) {
+    return entities
+        .transform(signalLog::flux)
+        .map(mapper::r2dbcEntityToApi)
+        .map(
+            e -> {
+              e.setServiceAddress(serviceUtil.getServiceAddress());
+              return e;
+            });
+  }
+
   @Override
   public Mono<Void> deleteReviews(int productId) {
-    return Mono.fromRunnable(() -> internalDeleteReviews(productId))
-        .log(LOG.getName(), FINE)
+    if (r2dbcRepository != null) {
+      LOG.debug(
+          "deleteReviews: tries to delete reviews for the product with productId: {}", productId);
+      return r2dbcRepository
+          .deleteByProductId(productId)
+          .doOnNext(count -> LOG.debug("deleteReviews: deleted {} reviews", count))
+          .flatMap(count -> r2dbcStatsRepository.deleteByProductId(productId))
+          .as(transactionalOperator::transactional)
+          .transform(signalLog::mono)
+          .then();
+    }
+
+    return Mono.fromCallable(() -> internalDeleteReviews(productId))
+        .transform(signalLog::mono)
         .subscribeOn(jobScheduler)
         .then();
   }
 
-  private void internalDeleteReviews(int productId) {
+  private int internalDeleteReviews(int productId) {
     LOG.debug(
         "deleteReviews: tries to delete reviews for the product with productId: {}", productId);
-    repository.deleteAll(repository.findByProductId(productId));
+    int count =
+        transactionTemplate.execute(
+            status -> {
+              statsRepository.deleteByProductId(productId);
+              return repository.deleteByProductId(productId);
+            });
+    LOG.debug("deleteReviews: deleted {} reviews", count);
+    return count;
   }
 }
@@ -0,0 +1,161 @@
+package se.magnus.microservices.core.review.services;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataIntegrityViolationException;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+import se.magnus.api.core.review.Review;
+
+/**
+ * Collects reviews to create into micro-batches, bounded by size and max wait, and saves each batch
+ * in one transaction. Every caller's Mono completes when the batch of its review is committed.
+ *
+ * <p>If a batch fails on a duplicate key, its reviews are saved one by one, so only the duplicates
+ * fail.
+ *
+ * <p>At most maxPending reviews wait to be saved, further reviews are rejected at once with a
+ * RejectedExecutionException instead of piling up in memory when the database falls behind.
+ *
+ * <p>On dispose, the reviews that are already accepted are flushed, waiting at most
+ * shutdownTimeout. Those that are still not saved then fail.
+ */
+public class ReviewWriteBehind {
+  private static final Logger LOG = LoggerFactory.getLogger(ReviewWriteBehind.class);
+
+  private record Pending(Review review, MonoSink<Review> result) {}
+
+  private final Function<List<Review>, List<Review>> saveBatch;
+  private final Function<Review, Review> saveOne;
+  private final int maxPending;
+  private final Duration shutdownTimeout;
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final Set<MonoSink<Review>> unsaved = ConcurrentHashMap.newKeySet();
+  private final CountDownLatch drained = new CountDownLatch(1);
+  private final Disposable subscription;
+
+  private FluxSink<Pending> queue;
+  private volatile boolean disposed;
+
+  /**
+   * @param saveBatch saves the reviews in one transaction, throws a
+   *     DataIntegrityViolationException if any of them is a duplicate
+   * @param saveOne saves one review in its own transaction
+   */
+  public ReviewWriteBehind(
+      Function<List<Review>, List<Review>> saveBatch,
+      Function<Review, Review> saveOne,
+      Scheduler scheduler,
+      int maxBatchSize,
+      Duration maxWait,
+      int maxPending,
+      Duration shutdownTimeout) {
+    LOG.info(
+        "Creates a review write-behind buffer, "
+            + "max batch size = {}, max wait = {}, max pending = {}",
+        maxBatchSize,
+        maxWait,
+        maxPending);
+    this.saveBatch = saveBatch;
+    this.saveOne = saveOne;
+    this.maxPending = maxPending;
+    this.shutdownTimeout = shutdownTimeout;
+
+    // Batches are flushed one at a time, the ones that fill up meanwhile wait in the buffer. It is
+    // bounded by maxPending, since submit() rejects reviews above it.
+    this.subscription =
+        Flux.<Pending>create(sink -> queue = sink)
+            .bufferTimeout(maxBatchSize, maxWait)
+            .onBackpressureBuffer()
+            .concatMap(batch -> Mono.fromRunnable(() -> flush(batch)).subscribeOn(scheduler))
+            .doFinally(signal -> drained.countDown())
+            .subscribe();
+  }
+
+  public Mono<Review> submit(Review review) {
+    return Mono.create(
+        result -> {
+          if (disposed) {
+            result.error(
+                new RejectedExecutionException("The review write-behind buffer is closed"));
+            return;
+          }
+          if (waiting.incrementAndGet() > maxPending) {
+            waiting.decrementAndGet();
+            result.error(
+                new RejectedExecutionException(
+                    "The review write-behind buffer is full, max is " + maxPending + " reviews"));
+            return;
+          }
+          unsaved.add(result);
+          queue.next(new Pending(review, result));
+        });
+  }
+
+  /** Flushes the accepted reviews, and fails those that are not saved within shutdownTimeout. */
+  public void dispose() {
+    disposed = true;
+    queue.complete();
+    try {
+      if (!drained.await(shutdownTimeout.toMillis(), MILLISECONDS)) {
+        LOG.warn("Reviews were not flushed within {}, fails {}", shutdownTimeout, unsaved.size());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    subscription.dispose();
+
+    // Also fails reviews that were submitted while the buffer was being closed
+    unsaved.forEach(
+        result ->
+            result.error(
+                new RejectedExecutionException(
+                    "The review write-behind buffer was closed before the review was saved")));
+    unsaved.clear();
+  }
+
+  private void flush(List<Pending> batch) {
+    try {
+      List<Review> created = saveBatch.apply(batch.stream().map(Pending::review).toList());
+      LOG.debug("Flushed a batch of {} reviews", created.size());
+      for (int i = 0; i < batch.size(); i++) {
+        batch.get(i).result().success(created.get(i));
+      }
+
+    } catch (DataIntegrityViolationException dive) {
+      // The batch was rolled back, save the reviews one by one to fail the duplicates only
+      LOG.debug("Batch of {} reviews failed on a duplicate key, retries one by one", batch.size());
+      batch.forEach(this::flushOne);
+
+    } catch (RuntimeException ex) {
+      LOG.warn("Failed to flush a batch of {} reviews: {}", batch.size(), ex.toString());
+      batch.forEach(pending -> pending.result().error(ex));
+
+    } finally {
+      batch.forEach(pending -> unsaved.remove(pending.result()));
+      waiting.addAndGet(-batch.size());
+    }
+  }
+
+  private void flushOne(Pending pending) {
+    try {
+      pending.result().success(saveOne.apply(pending.review()));
+    } catch (RuntimeException ex) {
+      pending.result().error(ex);
+    }
+  }
+}
@@ -0,0 +1,30 @@
+-- The ids are set by ReviewIdSequence from review_entity_seq, as Hibernate does in JPA mode
+CREATE TABLE IF NOT EXISTS reviews (
+  id INT NOT NULL,
+  version INT NOT NULL,
+  product_id INT NOT NULL,
+  review_id INT NOT NULL,
+  author VARCHAR(255),
+  subject VARCHAR(255),
+  content VARCHAR(255),
+  PRIMARY KEY (id),
+  CONSTRAINT reviews_unique_idx UNIQUE (product_id, review_id)
+);
+
+CREATE TABLE IF NOT EXISTS review_entity_seq (
+  next_val BIGINT
+);
+
+-- Reading next_val reserves the 50 ids up to it (ReviewEntity.ID_BLOCK_SIZE), so it starts above
+-- the ids of reviews that earlier versions created with AUTO_INCREMENT
+INSERT INTO review_entity_seq (next_val)
+SELECT seed.next_val
+FROM (SELECT COALESCE(MAX(id), 0) + 51 AS next_val FROM reviews) seed
+WHERE NOT EXISTS (SELECT * FROM review_entity_seq);
+
+CREATE TABLE IF NOT EXISTS review_stats (
+  product_id INT NOT NULL,
+  review_count BIGINT NOT NULL,
+  last_updated DATETIME(6),
+  PRIMARY KEY (product_id)
+);
@@ -0,0 +1,16 @@
+package se.magnus.microservices.core.review;
+
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest(
+    webEnvironment = RANDOM_PORT,
+    properties = {"spring.datasource.url=jdbc:h2:mem:review-db-jdbc;DB_CLOSE_DELAY=-1;MODE=MySQL"})
+class JdbcModeBenchmarkTests extends PersistenceModeBenchmarkBase {
+
+  @Override
+  String mode() {
+    return "JDBC";
+  }
+}
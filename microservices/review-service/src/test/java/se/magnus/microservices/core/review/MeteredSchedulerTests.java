@@ -0,0 +1,113 @@
+package se.magnus.microservices.core.review;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Scheduler.Worker;
+import reactor.core.scheduler.Schedulers;
+
+class MeteredSchedulerTests {
+
+  private MeterRegistry registry;
+  private Scheduler delegate;
+
+  @BeforeEach
+  void setupRegistry() {
+    registry = new SimpleMeterRegistry();
+  }
+
+  @AfterEach
+  void disposeScheduler() {
+    delegate.dispose();
+  }
+
+  @Test
+  void queuedRejectedAndWaitAreMetered() throws InterruptedException {
+    // One thread and room for one waiting task
+    delegate =
+        Schedulers.fromExecutorService(
+            new ThreadPoolExecutor(1, 1, 0, MILLISECONDS, new ArrayBlockingQueue<>(1)));
+    MeteredScheduler scheduler = new MeteredScheduler(delegate, "test", registry);
+
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    scheduler.schedule(
+        () -> {
+          started.countDown();
+          awaitQuietly(release);
+        });
+    assertTrue(started.await(5, SECONDS));
+
+    CountDownLatch done = new CountDownLatch(1);
+    scheduler.schedule(done::countDown);
+    assertEquals(1, queued());
+
+    assertThrows(RejectedExecutionException.class, () -> scheduler.schedule(() -> {}));
+    assertEquals(1, registry.get("jdbc.scheduler.rejected").counter().count());
+    assertEquals(1, queued());
+
+    release.countDown();
+    assertTrue(done.await(5, SECONDS));
+    assertEquals(0, queued());
+    assertEquals(2, waitCount());
+  }
+
+  @Test
+  void delayedTasksAreDelegatedAndMetered() throws InterruptedException {
+    delegate = Schedulers.newBoundedElastic(1, 10, "metered-scheduler-test");
+    MeteredScheduler scheduler = new MeteredScheduler(delegate, "test", registry);
+
+    CountDownLatch done = new CountDownLatch(1);
+    scheduler.schedule(done::countDown, 50, MILLISECONDS);
+    assertEquals(1, queued());
+
+    assertTrue(done.await(5, SECONDS));
+    assertEquals(0, queued());
+    assertEquals(1, waitCount());
+  }
+
+  @Test
+  void periodicWorkerTasksAreDelegatedAndMeteredOnce() throws InterruptedException {
+    delegate = Schedulers.newBoundedElastic(1, 10, "metered-scheduler-test");
+    Worker worker = new MeteredScheduler(delegate, "test", registry).createWorker();
+
+    CountDownLatch runs = new CountDownLatch(3);
+    Disposable periodic = worker.schedulePeriodically(runs::countDown, 0, 10, MILLISECONDS);
+
+    assertTrue(runs.await(5, SECONDS));
+    periodic.dispose();
+    worker.dispose();
+    assertEquals(0, queued());
+    assertEquals(1, waitCount());
+  }
+
+  private double queued() {
+    return registry.get("jdbc.scheduler.queued").gauge().value();
+  }
+
+  private long waitCount() {
+    return registry.get("jdbc.scheduler.wait").timer().count();
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await(5, SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package se.magnus.microservices.core.review;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import se.magnus.api.core.review.Review;
+
+/**
+ * Runs the same create and read workload against the service in one of its persistence modes.
+ * Both modes use an in-memory H2 database, so the numbers compare the threading models rather than
+ * the database.
+ *
+ * <p>Run with "./gradlew :microservices:review-service:benchmark" and compare the logged results.
+ */
+@Tag("benchmark")
+@TestPropertySource(
+    properties = {
+      "logging.level.se.magnus.microservices=INFO",
+      "logging.level.org.hibernate.SQL=INFO",
+      "logging.level.org.hibernate.type.descriptor.sql.BasicBinder=INFO"
+    })
+abstract class PersistenceModeBenchmarkBase {
+  private static final Logger LOG = LoggerFactory.getLogger(PersistenceModeBenchmarkBase.class);
+
+  private static final int PRODUCTS = 50;
+  private static final int REVIEWS_PER_PRODUCT = 20;
+  private static final int READS_PER_PRODUCT = 20;
+  private static final int CONCURRENCY = 200;
+
+  @LocalServerPort private int port;
+
+  abstract String mode();
+
+  @Test
+  void createAndGetReviews() {
+    WebClient client = WebClient.create("http://localhost:" + port);
+
+    // Warm up JIT and connection pools on product ids that are not part of the measurement
+    measure("warm-up", PRODUCTS * REVIEWS_PER_PRODUCT, i -> createReview(client, 1000 + i, 1));
+
+    measure(
+        "create",
+        PRODUCTS * REVIEWS_PER_PRODUCT,
+        i -> createReview(client, 1 + i / REVIEWS_PER_PRODUCT, 1 + i % REVIEWS_PER_PRODUCT));
+    measure("get", PRODUCTS * READS_PER_PRODUCT, i -> getReviews(client, 1 + i % PRODUCTS));
+  }
+
+  private void measure(String name, int requests, IntFunction<Mono<?>> request) {
+    AtomicInteger errors = new AtomicInteger();
+
+    long start = System.nanoTime();
+    Flux.range(0, requests)
+        .flatMap(
+            i ->
+                request
+                    .apply(i)
+                    .onErrorResume(
+                        error -> {
+                          errors.incrementAndGet();
+                          return Mono.empty();
+                        }),
+            CONCURRENCY)
+        .blockLast();
+    long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+
+    LOG.info(
+        "{} mode, {}: {} requests in {} ms, {} requests/s, {} errors",
+        mode(),
+        name,
+        requests,
+        elapsedMs,
+        requests * 1000L / elapsedMs,
+        errors.get());
+  }
+
+  private Mono<?> createReview(WebClient client, int productId, int reviewId) {
+    Review review = new Review(productId, reviewId, "a", "s", "c", null);
+    return client.post().uri("/review").bodyValue(review).retrieve().toBodilessEntity();
+  }
+
+  private Mono<?> getReviews(WebClient client, int productId) {
+    return client
+        .get()
+        .uri("/review?productId=" + productId)
+        .retrieve()
+        .bodyToFlux(Review.class)
+        .then();
+  }
+}
@@ -0,0 +1,68 @@
+package se.magnus.microservices.core.review;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import se.magnus.api.core.review.Review;
+import se.magnus.api.core.review.ReviewService;
+import se.magnus.microservices.core.review.persistence.R2dbcReviewRepository;
+import se.magnus.microservices.core.review.persistence.ReviewRepository;
+
+/**
+ * Writes reviews in JPA mode, then in R2DBC mode and then in JPA mode again, against the same
+ * in-memory H2 database, to verify that both modes take their ids from the same sequence.
+ */
+class PersistenceModeSwitchTests {
+
+  private static final String JDBC_URL =
+      "jdbc:h2:mem:review-db-switch;DB_CLOSE_DELAY=-1;MODE=MySQL";
+  private static final String R2DBC_URL =
+      "r2dbc:h2:mem:///review-db-switch?options=DB_CLOSE_DELAY=-1;MODE=MySQL";
+
+  @Test
+  void createsReviewsInBothModesInTheSameTables() {
+    try (ConfigurableApplicationContext jdbc = start()) {
+      createReviews(jdbc, 1);
+    }
+
+    try (ConfigurableApplicationContext r2dbc = start("r2dbc")) {
+      createReviews(r2dbc, 2);
+      assertEquals(6, r2dbc.getBean(R2dbcReviewRepository.class).count().block());
+    }
+
+    try (ConfigurableApplicationContext jdbc = start()) {
+      createReviews(jdbc, 3);
+
+      // The id is the primary key, so a reused id would have failed one of the creations
+      ReviewRepository repository = jdbc.getBean(ReviewRepository.class);
+      assertEquals(9, repository.count());
+    }
+  }
+
+  private ConfigurableApplicationContext start(String... profiles) {
+    return new SpringApplicationBuilder(ReviewServiceApplication.class)
+        .profiles(profiles)
+        .properties(
+            "server.port=0",
+            "spring.datasource.url=" + JDBC_URL,
+            "spring.r2dbc.url=" + R2DBC_URL,
+            "logging.level.org.hibernate.SQL=INFO",
+            "logging.level.org.hibernate.type.descriptor.sql.BasicBinder=INFO")
+        .run();
+  }
+
+  // One review on its own and two in one batch
+  private void createReviews(ConfigurableApplicationContext context, int productId) {
+    ReviewService service = context.getBean(ReviewService.class);
+    service.createReview(review(productId, 1)).block();
+    List<Review> batch = List.of(review(productId, 2), review(productId, 3));
+    assertEquals(2, service.createReviews(batch).count().block());
+  }
+
+  private Review review(int productId, int reviewId) {
+    return new Review(productId, reviewId, "a", "s", "c", null);
+  }
+}
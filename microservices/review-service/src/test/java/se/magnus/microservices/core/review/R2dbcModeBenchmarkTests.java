@@ -0,0 +1,20 @@
+package se.magnus.microservices.core.review;
+
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+
+@SpringBootTest(
+    webEnvironment = RANDOM_PORT,
+    properties = {
+      "spring.r2dbc.url=r2dbc:h2:mem:///review-db-r2dbc?options=DB_CLOSE_DELAY=-1;MODE=MySQL"
+    })
+@ActiveProfiles("r2dbc")
+class R2dbcModeBenchmarkTests extends PersistenceModeBenchmarkBase {
+
+  @Override
+  String mode() {
+    return "R2DBC";
+  }
+}
@@ -0,0 +1,119 @@
+package se.magnus.microservices.core.review;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
+import static org.springframework.http.HttpStatus.*;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static reactor.core.publisher.Mono.just;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import se.magnus.api.core.review.Review;
+import se.magnus.microservices.core.review.persistence.R2dbcReviewRepository;
+
+@SpringBootTest(
+    webEnvironment = RANDOM_PORT,
+    properties = {
+      "spring.r2dbc.url=r2dbc:h2:mem:///review-db?options=DB_CLOSE_DELAY=-1;MODE=MySQL"
+    })
+@ActiveProfiles("r2dbc")
+class R2dbcModeTests {
+
+  @Autowired private WebTestClient client;
+
+  @Autowired private R2dbcReviewRepository repository;
+
+  @BeforeEach
+  void setupDb() {
+    repository.deleteAll().block();
+  }
+
+  @Test
+  void getReviewsByProductId() {
+
+    int productId = 1;
+
+    postAndVerifyReview(productId, 1, OK);
+    postAndVerifyReview(productId, 2, OK);
+    postAndVerifyReview(productId, 3, OK);
+
+    assertEquals(3, repository.findByProductId(productId).count().block());
+
+    getAndVerifyReviewsByProductId(productId, OK)
+        .jsonPath("$.length()")
+        .isEqualTo(3)
+        .jsonPath("$[2].productId")
+        .isEqualTo(productId);
+  }
+
+  @Test
+  void duplicateError() {
+
+    int productId = 1;
+    int reviewId = 1;
+
+    postAndVerifyReview(productId, reviewId, OK);
+
+    postAndVerifyReview(productId, reviewId, UNPROCESSABLE_ENTITY)
+        .jsonPath("$.path")
+        .isEqualTo("/review")
+        .jsonPath("$.message")
+        .isEqualTo("Duplicate key, Product Id: 1, Review Id:1");
+
+    assertEquals(1, repository.count().block());
+  }
+
+  @Test
+  void deleteReviews() {
+
+    int productId = 1;
+
+    postAndVerifyReview(productId, 1, OK);
+    assertEquals(1, repository.findByProductId(productId).count().block());
+
+    client.delete().uri("/review?productId=" + productId).exchange().expectStatus().isEqualTo(OK);
+    assertEquals(0, repository.findByProductId(productId).count().block());
+  }
+
+  private WebTestClient.BodyContentSpec getAndVerifyReviewsByProductId(
+      int productId, HttpStatus expectedStatus) {
+    return client
+        .get()
+        .uri("/review?productId=" + productId)
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(expectedStatus)
+        .expectHeader()
+        .contentType(APPLICATION_JSON)
+        .expectBody();
+  }
+
+  private WebTestClient.BodyContentSpec postAndVerifyReview(
+      int productId, int reviewId, HttpStatus expectedStatus) {
+    Review review =
+        new Review(
+            productId,
+            reviewId,
+            "Author " + reviewId,
+            "Subject " + reviewId,
+            "Content " + reviewId,
+            "SA");
+    return client
+        .post()
+        .uri("/review")
+        .body(just(review), Review.class)
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(expectedStatus)
+        .expectHeader()
+        .contentType(APPLICATION_JSON)
+        .expectBody();
+  }
+}
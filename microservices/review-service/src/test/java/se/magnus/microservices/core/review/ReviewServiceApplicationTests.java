@@ -4,8 +4,12 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.springframework.boot.test.context.SpringBootTest.WebEnvironment.RANDOM_PORT;
 import static org.springframework.http.HttpStatus.*;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.http.MediaType.APPLICATION_NDJSON;
 import static reactor.core.publisher.Mono.just;
 
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -14,6 +18,7 @@ import org.springframework.http.HttpStatus;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import se.magnus.api.core.review.Review;
 import se.magnus.microservices.core.review.persistence.ReviewRepository;
+import se.magnus.microservices.core.review.persistence.ReviewStatsRepository;
 
 @SpringBootTest(webEnvironment = RANDOM_PORT)
 class ReviewServiceApplicationTests extends MySqlTestBase {
@@ -22,9 +27,12 @@ class ReviewServiceApplicationTests extends MySqlTestBase {
 
   @Autowired private ReviewRepository repository;
 
+  @Autowired private ReviewStatsRepository statsRepository;
+
   @BeforeEach
   void setupDb() {
     repository.deleteAll();
+    statsRepository.deleteAll();
   }
 
   @Test
@@ -74,6 +82,35 @@ class ReviewServiceApplicationTests extends MySqlTestBase {
     assertEquals(1, repository.count());
   }
 
+  @Test
+  void createReviewsInBatch() {
+
+    int productId = 1;
+
+    postAndVerifyReview(productId, 2, OK);
+
+    List<Review> reviews =
+        List.of(
+            new Review(productId, 1, "a", "s", "c", null),
+            new Review(productId, 2, "a", "s", "c", null),
+            new Review(productId, 3, "a", "s", "c", null));
+
+    client
+        .post()
+        .uri("/review/batch")
+        .bodyValue(reviews)
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(UNPROCESSABLE_ENTITY)
+        .expectBody()
+        .jsonPath("$.message")
+        .isEqualTo("Duplicate key, Product Id: 1, Review Id:2");
+
+    // All reviews but the duplicate are created
+    assertEquals(3, repository.findByProductId(productId).size());
+  }
+
   @Test
   void deleteReviews() {
 
@@ -89,6 +126,127 @@ class ReviewServiceApplicationTests extends MySqlTestBase {
     deleteAndVerifyReviewsByProductId(productId, OK);
   }
 
+  @Test
+  void getReviewsAsNdjson() {
+
+    int productId = 1;
+
+    postAndVerifyReview(productId, 1, OK);
+    postAndVerifyReview(productId, 2, OK);
+
+    List<Review> reviews =
+        client
+            .get()
+            .uri("/review?productId=" + productId)
+            .accept(APPLICATION_NDJSON)
+            .exchange()
+            .expectStatus()
+            .isEqualTo(OK)
+            .expectHeader()
+            .contentType(APPLICATION_NDJSON)
+            .returnResult(Review.class)
+            .getResponseBody()
+            .collectList()
+            .block();
+
+    assertEquals(2, reviews.size());
+    assertEquals(2, reviews.get(1).getReviewId());
+  }
+
+  @Test
+  void getReviewsPageByPage() {
+
+    int productId = 1;
+
+    postAndVerifyReview(productId, 1, OK);
+    postAndVerifyReview(productId, 2, OK);
+    postAndVerifyReview(productId, 3, OK);
+
+    getAndVerifyReviewsByProductId("?productId=" + productId + "&limit=2", OK)
+        .jsonPath("$.length()")
+        .isEqualTo(2)
+        .jsonPath("$[1].reviewId")
+        .isEqualTo(2);
+
+    getAndVerifyReviewsByProductId("?productId=" + productId + "&afterId=2&limit=2", OK)
+        .jsonPath("$.length()")
+        .isEqualTo(1)
+        .jsonPath("$[0].reviewId")
+        .isEqualTo(3);
+
+    getAndVerifyReviewsByProductId("?productId=" + productId + "&limit=0", UNPROCESSABLE_ENTITY)
+        .jsonPath("$.message")
+        .isEqualTo("Invalid limit: 0, max is 1000");
+  }
+
+  @Test
+  void getReviewsPageNotModified() {
+
+    int productId = 1;
+
+    postAndVerifyReview(productId, 1, OK);
+    postAndVerifyReview(productId, 2, OK);
+
+    String uri = "/review?productId=" + productId + "&limit=10";
+    String etag =
+        client
+            .get()
+            .uri(uri)
+            .accept(APPLICATION_JSON)
+            .exchange()
+            .expectStatus()
+            .isEqualTo(OK)
+            .returnResult(Review.class)
+            .getResponseHeaders()
+            .getETag();
+
+    client
+        .get()
+        .uri(uri)
+        .accept(APPLICATION_JSON)
+        .ifNoneMatch(etag)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(NOT_MODIFIED);
+
+    // A new review on the page changes its ETag
+    postAndVerifyReview(productId, 3, OK);
+
+    client
+        .get()
+        .uri(uri)
+        .accept(APPLICATION_JSON)
+        .ifNoneMatch(etag)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(OK)
+        .expectBody()
+        .jsonPath("$.length()")
+        .isEqualTo(3);
+  }
+
+  @Test
+  void getReviewStats() {
+
+    int productId = 1;
+
+    getAndVerifyReviewStats(productId).jsonPath("$.count").isEqualTo(0);
+
+    postAndVerifyReview(productId, 1, OK);
+    postAndVerifyReview(productId, 2, OK);
+    postAndVerifyReview(productId, 3, OK);
+
+    getAndVerifyReviewStats(productId)
+        .jsonPath("$.productId")
+        .isEqualTo(productId)
+        .jsonPath("$.count")
+        .isEqualTo(3);
+
+    deleteAndVerifyReviewsByProductId(productId, OK);
+
+    getAndVerifyReviewStats(productId).jsonPath("$.count").isEqualTo(0);
+  }
+
   @Test
   void getReviewsMissingParameter() {
 
@@ -127,6 +285,24 @@ class ReviewServiceApplicationTests extends MySqlTestBase {
         .isEqualTo("Invalid productId: " + productIdInvalid);
   }
 
+  @Test
+  void getReviewsWithTooManyProductIds() {
+
+    String productIds =
+        IntStream.rangeClosed(1, 201).mapToObj(String::valueOf).collect(Collectors.joining(","));
+
+    client
+        .get()
+        .uri("/review/batch?productIds=" + productIds)
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(UNPROCESSABLE_ENTITY)
+        .expectBody()
+        .jsonPath("$.message")
+        .isEqualTo("Too many productIds: 201, max is 200");
+  }
+
   private WebTestClient.BodyContentSpec getAndVerifyReviewsByProductId(
       int productId, HttpStatus expectedStatus) {
     return getAndVerifyReviewsByProductId("?productId=" + productId, expectedStatus);
@@ -146,6 +322,19 @@ class ReviewServiceApplicationTests extends MySqlTestBase {
         .expectBody();
   }
 
+  private WebTestClient.BodyContentSpec getAndVerifyReviewStats(int productId) {
+    return client
+        .get()
+        .uri("/review/stats?productId=" + productId)
+        .accept(APPLICATION_JSON)
+        .exchange()
+        .expectStatus()
+        .isEqualTo(OK)
+        .expectHeader()
+        .contentType(APPLICATION_JSON)
+        .expectBody();
+  }
+
   private WebTestClient.BodyContentSpec postAndVerifyReview(
       int productId, int reviewId, HttpStatus expectedStatus) {
     Review review =
@@ -0,0 +1,194 @@
+package se.magnus.microservices.core.review;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+import se.magnus.api.core.review.Review;
+import se.magnus.api.core.review.ReviewService;
+import se.magnus.api.exceptions.InvalidInputException;
+import se.magnus.microservices.core.review.persistence.ReviewRepository;
+import se.magnus.microservices.core.review.persistence.ReviewStatsRepository;
+import se.magnus.microservices.core.review.services.ReviewWriteBehind;
+
+@SpringBootTest(
+    properties = {
+      "app.review-write-behind.enabled=true",
+      "app.review-write-behind.max-batch-size=5",
+      "app.review-write-behind.max-wait=100ms"
+    })
+class ReviewWriteBehindTests extends MySqlTestBase {
+
+  @Autowired private ReviewService service;
+
+  @Autowired private ReviewRepository repository;
+
+  @Autowired private ReviewStatsRepository statsRepository;
+
+  @BeforeEach
+  void setupDb() {
+    repository.deleteAll();
+    statsRepository.deleteAll();
+  }
+
+  @Test
+  void concurrentCreatesAreBatched() {
+
+    int productId = 1;
+
+    List<String> results =
+        Flux.range(1, 12)
+            .flatMap(reviewId -> create(productId, reviewId), 12)
+            .collectList()
+            .block();
+
+    assertEquals(12, results.size());
+    assertEquals(12, repository.findByProductId(productId).size());
+    assertEquals(12, statsRepository.findById(productId).get().getReviewCount());
+  }
+
+  @Test
+  void duplicateFailsOnlyItself() {
+
+    int productId = 1;
+
+    create(productId, 3).block();
+
+    // Ids 1 to 5 are collected into one batch, which is rolled back on the duplicate id 3
+    List<String> results =
+        Flux.range(1, 5).flatMap(reviewId -> create(productId, reviewId), 5).collectList().block();
+
+    assertEquals(1, results.stream().filter(result -> result.startsWith("Duplicate")).count());
+    assertEquals(5, repository.findByProductId(productId).size());
+    assertEquals(5, statsRepository.findById(productId).get().getReviewCount());
+  }
+
+  @Test
+  void createIsRejectedWhenTheBufferIsFull() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    ReviewWriteBehind writeBehind =
+        new ReviewWriteBehind(
+            reviews -> {
+              awaitQuietly(release);
+              return reviews;
+            },
+            review -> review,
+            Schedulers.boundedElastic(),
+            1,
+            Duration.ofMillis(1),
+            2,
+            Duration.ofSeconds(5));
+
+    try {
+      // The first review is being saved and the second one waits for it
+      CompletableFuture<Review> first = writeBehind.submit(review(1)).toFuture();
+      CompletableFuture<Review> second = writeBehind.submit(review(2)).toFuture();
+
+      StepVerifier.create(writeBehind.submit(review(3)))
+          .expectError(RejectedExecutionException.class)
+          .verify();
+
+      release.countDown();
+      assertEquals(1, first.get(5, SECONDS).getReviewId());
+      assertEquals(2, second.get(5, SECONDS).getReviewId());
+      StepVerifier.create(writeBehind.submit(review(4))).expectNextCount(1).verifyComplete();
+
+    } finally {
+      writeBehind.dispose();
+    }
+  }
+
+  @Test
+  void disposeFlushesPendingReviews() throws Exception {
+    List<Review> saved = new CopyOnWriteArrayList<>();
+    ReviewWriteBehind writeBehind =
+        new ReviewWriteBehind(
+            reviews -> {
+              saved.addAll(reviews);
+              return reviews;
+            },
+            review -> review,
+            Schedulers.boundedElastic(),
+            10,
+            Duration.ofHours(1),
+            10,
+            Duration.ofSeconds(5));
+
+    // The batch is not full and its max wait has not passed, so nothing is flushed before dispose
+    CompletableFuture<Review> first = writeBehind.submit(review(1)).toFuture();
+    CompletableFuture<Review> second = writeBehind.submit(review(2)).toFuture();
+    writeBehind.dispose();
+
+    assertEquals(1, first.get(5, SECONDS).getReviewId());
+    assertEquals(2, second.get(5, SECONDS).getReviewId());
+    assertEquals(2, saved.size());
+    StepVerifier.create(writeBehind.submit(review(3)))
+        .expectError(RejectedExecutionException.class)
+        .verify();
+  }
+
+  @Test
+  void disposeFailsReviewsThatAreNotSavedWithinTheShutdownTimeout() {
+    CountDownLatch release = new CountDownLatch(1);
+    ReviewWriteBehind writeBehind =
+        new ReviewWriteBehind(
+            reviews -> {
+              awaitQuietly(release);
+              return reviews;
+            },
+            review -> review,
+            Schedulers.boundedElastic(),
+            1,
+            Duration.ofMillis(1),
+            10,
+            Duration.ofMillis(100));
+
+    try {
+      CompletableFuture<Review> first = writeBehind.submit(review(1)).toFuture();
+      CompletableFuture<Review> second = writeBehind.submit(review(2)).toFuture();
+      writeBehind.dispose();
+
+      ExecutionException ex = assertThrows(ExecutionException.class, () -> second.get(5, SECONDS));
+      assertInstanceOf(RejectedExecutionException.class, ex.getCause());
+      assertThrows(ExecutionException.class, () -> first.get(5, SECONDS));
+
+    } finally {
+      release.countDown();
+    }
+  }
+
+  private static Review review(int reviewId) {
+    return new Review(1, reviewId, "a", "s", "c", "SA");
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await(5, SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private Mono<String> create(int productId, int reviewId) {
+    return service
+        .createReview(new Review(productId, reviewId, "a", "s", "c", "SA"))
+        .map(review -> "Created " + review.getReviewId())
+        .onErrorResume(InvalidInputException.class, ex -> Mono.just(ex.getMessage()));
+  }
+}
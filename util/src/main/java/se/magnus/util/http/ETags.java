@@ -0,0 +1,111 @@
+package se.magnus.util.http;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.function.Function;
+import org.springframework.web.filter.reactive.ServerWebExchangeContextFilter;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Conditional GET support for the reactive controllers. The ETag is set on the response of the
+ * current request, and a matching If-None-Match turns the response into a 304 without a body.
+ *
+ * <p>Outside of a request, e.g. when a service is called directly, the body is always emitted.
+ *
+ * <p>An ETag is a SHA-256 digest over the string forms of its values. A fold of their hash codes
+ * would let different content, e.g. "Aa" and "BB", get the same ETag, and a client a 304 for a
+ * stale body.
+ */
+public final class ETags {
+
+  private ETags() {}
+
+  /** A weak ETag over the given values, e.g. the database id and version of an entity. */
+  public static String weak(Object... values) {
+    Digest digest = digest();
+    for (Object value : values) {
+      digest.add(value);
+    }
+    return digest.weak();
+  }
+
+  /** A weak ETag over the database ids and versions of the given entities. */
+  public static <T> String weak(
+      Collection<T> entities, Function<T, ?> idOf, Function<T, ?> versionOf) {
+    Digest digest = digest();
+    for (T entity : entities) {
+      digest.add(idOf.apply(entity)).add(versionOf.apply(entity));
+    }
+    return digest.weak();
+  }
+
+  /** A weak ETag that is given its values one by one, e.g. the fields of each item of a list. */
+  public static Digest digest() {
+    return new Digest();
+  }
+
+  /** Emits the body, or nothing if the client already has the version with the given ETag. */
+  public static <T> Mono<T> conditional(T body, String etag) {
+    return checkNotModified(etag)
+        .flatMap(notModified -> notModified ? Mono.empty() : Mono.just(body));
+  }
+
+  /** As {@link #conditional(Object, String)}, for a list that is sent as a whole. */
+  public static <T> Flux<T> conditional(List<T> body, String etag) {
+    return checkNotModified(etag)
+        .flatMapMany(notModified -> notModified ? Flux.empty() : Flux.fromIterable(body));
+  }
+
+  private static Mono<Boolean> checkNotModified(String etag) {
+    return Mono.deferContextual(
+        context ->
+            Mono.just(
+                ServerWebExchangeContextFilter.getExchange(context)
+                    .map(exchange -> exchange.checkNotModified(etag))
+                    .orElse(false)));
+  }
+
+  /** Collects the values of a weak ETag, see {@link #digest()}. */
+  public static final class Digest {
+
+    private final MessageDigest sha256;
+
+    private Digest() {
+      try {
+        sha256 = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("SHA-256 is not supported", e);
+      }
+    }
+
+    // Each value is prefixed with its length, or -1 if null, so that neighbouring values can't be
+    // shifted into each other
+    public Digest add(Object value) {
+      if (value == null) {
+        addLength(-1);
+      } else {
+        byte[] bytes = String.valueOf(value).getBytes(UTF_8);
+        addLength(bytes.length);
+        sha256.update(bytes);
+      }
+      return this;
+    }
+
+    public String weak() {
+      return "W/\"" + HexFormat.of().formatHex(sha256.digest()) + "\"";
+    }
+
+    private void addLength(int length) {
+      sha256.update((byte) (length >>> 24));
+      sha256.update((byte) (length >>> 16));
+      sha256.update((byte) (length >>> 8));
+      sha256.update((byte) length);
+    }
+  }
+}
@@ -0,0 +1,8 @@
+package se.magnus.util.http;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.reactive.ServerWebExchangeContextFilter;
+
+/** Puts the current exchange in the Reactor context, where {@link ETags} looks for the request. */
+@Component
+public class ExchangeContextFilter extends ServerWebExchangeContextFilter {}
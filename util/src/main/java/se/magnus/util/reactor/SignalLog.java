@@ -0,0 +1,34 @@
+package se.magnus.util.reactor;
+
+import static java.util.logging.Level.FINE;
+
+import org.slf4j.Logger;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Logs the Reactor signals of a Mono or Flux at FINE (i.e. DEBUG) level, the same as {@code
+ * log(LOG.getName(), FINE)}. Use it with {@code transform(signalLog::mono)}.
+ *
+ * <p>When disabled, e.g. by app.reactor-log.enabled=false, no log operator is added at all. Even
+ * with DEBUG logging turned off, a log operator checks the log level on every signal and prevents
+ * operator fusion, so disabling it shows its cost.
+ */
+public class SignalLog {
+
+  private final String category;
+  private final boolean enabled;
+
+  public SignalLog(Logger logger, boolean enabled) {
+    this.category = logger.getName();
+    this.enabled = enabled;
+  }
+
+  public <T> Mono<T> mono(Mono<T> source) {
+    return enabled ? source.log(category, FINE) : source;
+  }
+
+  public <T> Flux<T> flux(Flux<T> source) {
+    return enabled ? source.log(category, FINE) : source;
+  }
+}